@@ -0,0 +1,309 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import androidx.core.content.ContextCompat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Calendar;
+
+/**
+ * Turns the background mode on and off by rules instead of manual calls.
+ *
+ * Supported rules, combined with "all" (default) or "any":
+ *
+ *   { type: "time", from: "08:00", to: "18:00", days: [1..7] }   1 = Monday
+ *   { type: "charging", value: true }
+ *   { type: "network", value: "connected" | "unmetered" | "none" }
+ *   { type: "battery", min: 20 }
+ *   { type: "screen", value: "on" | "off" }
+ *
+ * Rules are evaluated on system broadcasts, network callbacks and an
+ * inexact alarm at the next time window boundary. Only the sources used by the
+ * rules are registered, nothing is polled.
+ */
+final class ActivationRules {
+
+    interface Listener {
+        /**
+         * The rules evaluate to a new result.
+         *
+         * @param active If the background mode should run.
+         */
+        void onRulesChanged(boolean active);
+    }
+
+    private static final String ACTION_TIME = "de.einfachhans.BackgroundMode.RULES_TIME";
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final JSONArray rules;
+    private final boolean matchAny;
+
+    private BroadcastReceiver receiver;
+    private NetworkMonitor.Listener networkListener;
+    private PendingIntent timeIntent;
+
+    // Device state as reported by the broadcasts
+    private boolean charging = false;
+    private int batteryLevel = 100;
+    private boolean screenOn = true;
+
+    private Boolean active = null;
+
+    ActivationRules(Context context, JSONObject spec, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.rules = spec.optJSONArray("rules") != null ? spec.optJSONArray("rules") : new JSONArray();
+        this.matchAny = "any".equals(spec.optString("mode"));
+    }
+
+    /**
+     * Register the needed sources and evaluate the rules once.
+     */
+    void start() {
+        IntentFilter filter = new IntentFilter(ACTION_TIME);
+
+        if (uses("charging") || uses("battery")) {
+            filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        }
+        if (uses("screen")) {
+            filter.addAction(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            screenOn = pm == null || pm.isInteractive();
+        }
+
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onBroadcast(intent);
+            }
+        };
+
+        // ACTION_BATTERY_CHANGED is sticky, the current state is returned at once
+        Intent battery = ContextCompat.registerReceiver(context, receiver, filter,
+                ContextCompat.RECEIVER_NOT_EXPORTED);
+        if (battery != null) onBroadcast(battery);
+
+        if (uses("network")) {
+            networkListener = (connected, metered) -> handler.post(this::evaluate);
+            NetworkMonitor.addListener(context, networkListener);
+        }
+        if (uses("time")) {
+            scheduleTimeAlarm();
+        }
+
+        evaluate();
+    }
+
+    /**
+     * Unregister all sources.
+     */
+    void stop() {
+        handler.removeCallbacksAndMessages(null);
+
+        if (receiver != null) {
+            try {
+                context.unregisterReceiver(receiver);
+            } catch (Exception ignored) {}
+            receiver = null;
+        }
+        if (networkListener != null) {
+            NetworkMonitor.removeListener(context, networkListener);
+            networkListener = null;
+        }
+        cancelTimeAlarm();
+    }
+
+    private void onBroadcast(Intent intent) {
+        String action = intent.getAction();
+        if (action == null) return;
+
+        switch (action) {
+            case Intent.ACTION_BATTERY_CHANGED:
+                int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+                int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+
+                charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                        || status == BatteryManager.BATTERY_STATUS_FULL;
+                if (level >= 0 && scale > 0) {
+                    batteryLevel = level * 100 / scale;
+                }
+                break;
+            case Intent.ACTION_SCREEN_ON:
+                screenOn = true;
+                break;
+            case Intent.ACTION_SCREEN_OFF:
+                screenOn = false;
+                break;
+            case ACTION_TIME:
+                scheduleTimeAlarm();
+                break;
+            default:
+                break;
+        }
+        evaluate();
+    }
+
+    private void evaluate() {
+        boolean result = !matchAny;
+
+        for (int i = 0; i < rules.length(); i++) {
+            JSONObject rule = rules.optJSONObject(i);
+            if (rule == null) continue;
+
+            boolean match = matches(rule);
+            if (matchAny && match) { result = true; break; }
+            if (!matchAny && !match) { result = false; break; }
+        }
+
+        if (active == null || active != result) {
+            active = result;
+            listener.onRulesChanged(result);
+        }
+    }
+
+    private boolean matches(JSONObject rule) {
+        switch (rule.optString("type")) {
+            case "time":
+                return matchesTime(rule, Calendar.getInstance());
+            case "charging":
+                return charging == rule.optBoolean("value", true);
+            case "battery":
+                return batteryLevel >= rule.optInt("min", 0);
+            case "screen":
+                return screenOn == "on".equals(rule.optString("value", "on"));
+            case "network":
+                switch (rule.optString("value", "connected")) {
+                    case "none":
+                        return !NetworkMonitor.isConnected();
+                    case "unmetered":
+                        return NetworkMonitor.isConnected() && !NetworkMonitor.isMetered();
+                    default:
+                        return NetworkMonitor.isConnected();
+                }
+            default:
+                return true;
+        }
+    }
+
+    private static boolean matchesTime(JSONObject rule, Calendar now) {
+        int from = parseMinutes(rule.optString("from", "00:00"));
+        int to = parseMinutes(rule.optString("to", "24:00"));
+        int minutes = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+
+        // Windows crossing midnight belong to the day they started
+        boolean inWindow;
+        Calendar day = (Calendar) now.clone();
+        if (from <= to) {
+            inWindow = minutes >= from && minutes < to;
+        } else {
+            inWindow = minutes >= from || minutes < to;
+            if (minutes < to) day.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        if (!inWindow) return false;
+
+        JSONArray days = rule.optJSONArray("days");
+        if (days == null) return true;
+
+        // Calendar: 1 = Sunday, rules: 1 = Monday
+        int weekday = (day.get(Calendar.DAY_OF_WEEK) + 5) % 7 + 1;
+        for (int i = 0; i < days.length(); i++) {
+            if (days.optInt(i) == weekday) return true;
+        }
+        return false;
+    }
+
+    private static int parseMinutes(String time) {
+        try {
+            String[] parts = time.split(":");
+            return Integer.parseInt(parts[0]) * 60 + (parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Wake up at the next window boundary of any time rule.
+     */
+    private void scheduleTimeAlarm() {
+        Calendar now = Calendar.getInstance();
+        int minutes = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        int next = Integer.MAX_VALUE;
+
+        for (int i = 0; i < rules.length(); i++) {
+            JSONObject rule = rules.optJSONObject(i);
+            if (rule == null || !"time".equals(rule.optString("type"))) continue;
+
+            for (String key : new String[] { "from", "to" }) {
+                int boundary = parseMinutes(rule.optString(key, "00:00")) % (24 * 60);
+                int delta = (boundary - minutes + 24 * 60) % (24 * 60);
+                next = Math.min(next, delta == 0 ? 24 * 60 : delta);
+            }
+        }
+        if (next == Integer.MAX_VALUE) return;
+
+        Calendar at = (Calendar) now.clone();
+        at.set(Calendar.SECOND, 0);
+        at.set(Calendar.MILLISECOND, 0);
+        at.add(Calendar.MINUTE, next);
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (am == null) return;
+
+        if (timeIntent == null) {
+            Intent intent = new Intent(ACTION_TIME).setPackage(context.getPackageName());
+            timeIntent = PendingIntent.getBroadcast(context, 1, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        }
+        // Inexact is fine, lets the system batch the wakeup
+        am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, at.getTimeInMillis(), timeIntent);
+    }
+
+    private void cancelTimeAlarm() {
+        if (timeIntent == null) return;
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (am != null) am.cancel(timeIntent);
+    }
+
+    private boolean uses(String type) {
+        for (int i = 0; i < rules.length(); i++) {
+            JSONObject rule = rules.optJSONObject(i);
+            if (rule != null && type.equals(rule.optString("type"))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Current result and device state, for diagnostics.
+     */
+    JSONObject getState() throws JSONException {
+        JSONObject state = new JSONObject();
+        state.put("active", active != null && active);
+        state.put("charging", charging);
+        state.put("battery", batteryLevel);
+        state.put("screenOn", screenOn);
+        NetworkMonitor.refresh(context);
+        state.put("connected", NetworkMonitor.isConnected());
+        state.put("metered", NetworkMonitor.isMetered());
+        return state;
+    }
+}
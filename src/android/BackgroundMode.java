@@ -1,11 +1,17 @@
 package de.einfachhans.BackgroundMode;
 
 import android.app.Activity;
+import android.app.ForegroundServiceStartNotAllowedException;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
 
 import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
@@ -14,6 +20,9 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class BackgroundMode extends CordovaPlugin {
 
     // Plugin namespace
@@ -35,19 +44,111 @@ public class BackgroundMode extends CordovaPlugin {
         return defaultSettings;
     }
 
-    private CallbackContext permissionCallback;
+    // Callers waiting for the result of the permission request in flight
+    private final List<CallbackContext> permissionCallbacks = new ArrayList<>();
+
+    // Callback used to stream native events to JS
+    private static volatile CallbackContext eventCallback;
+
+    // Events fired in the service's own process, see setEventRelay
+    private static final String ACTION_EVENT = "de.einfachhans.BackgroundMode.EVENT";
+    private static final String EXTRA_MESSAGE = "message";
+
+    // Set within the service process if it is not the plugin's process
+    private static volatile Context eventRelay;
+
+    // Receives the relayed events within the plugin's process
+    private BroadcastReceiver eventReceiver;
+
+    // Settings of the running notification, as last configured
+    private volatile static JSONObject runtimeSettings = null;
+
+    /**
+     * Returns the settings of the last configure(update) call, handed to
+     * the service without serializing them into the intent.
+     */
+    static JSONObject getRuntimeSettings() {
+        return runtimeSettings;
+    }
+
+    // Set when the task got hidden from the recents by the detach policy
+    private static boolean detached = false;
+
+    // Turns the mode on and off by rules, see setRules
+    private ActivationRules activationRules;
 
     // Flag indicates if the foreground services has been started
     private volatile boolean isForegroundStarted = false;
 
+    // Time of the last start request, until the service reports itself running
+    private volatile long startRequestedAt = 0;
+
+    // Set by a stop request, until the next start. The service may still
+    // run meanwhile, but counts as disabled: updates must not restart it.
+    private volatile boolean stopRequested = false;
+
+    // Time the service has to come up after the start request
+    private static final long START_TIMEOUT_MS = 10 * 1000;
+
+    // Serializes start, stop and update requests of the bridge and UI threads
+    private final Object serviceLock = new Object();
+
+    @Override
+    protected void pluginInitialize()
+    {
+        LifecyclePolicy.onPluginInitialized(cordova.getActivity());
+        MemoryGovernor.install(cordova.getActivity());
+        ForegroundLauncher.install(cordova.getActivity());
+
+        // Show the task again that got hidden by the detach policy
+        if (detached) {
+            detached = false;
+            BackgroundModeExt.setExcludeFromRecents(cordova.getActivity(), false);
+        }
+
+        // The activity is back, its WebView takes over from the headless one
+        if (HeadlessRunner.isRunning()) {
+            HeadlessRunner.stop();
+        }
+    }
+
     @Override
     public void onDestroy()
     {
 		super.onDestroy();
 		
+        eventCallback = null;
+        unregisterEventReceiver();
+        Preflight.release(cordova.getActivity());
+        clearRules();
+
+        Activity context = cordova.getActivity();
+        String policy    = LifecyclePolicy.get(context);
+        boolean headless = HeadlessRunner.isEnabled(context)
+                && !ForegroundService.isSeparateProcess(context);
+
+        // Keep the service and the warm process
+        if (isEnabled() && (headless || LifecyclePolicy.keepsService(policy))) {
+            // Callbacks of this WebView are about to be dead
+            TimerScheduler scheduler = TimerScheduler.get();
+            if (scheduler != null) scheduler.clear();
+
+            if (LifecyclePolicy.DETACH.equals(policy)) {
+                detached = true;
+                BackgroundModeExt.setExcludeFromRecents(context, true);
+            }
+            if (headless) {
+                Intent intent = new Intent(context, ForegroundService.class);
+                intent.setAction(ForegroundService.ACTION_HEADLESS);
+                context.startService(intent);
+            }
+            LifecyclePolicy.onActivityDestroyed(context);
+            return;
+        }
+
         stopForeground(null);
-        // Older then Android 8
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+        // Older then Android 8, or explicitly requested
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || LifecyclePolicy.KILL.equals(policy)) {
             android.os.Process.killProcess(android.os.Process.myPid());
         }
     }
@@ -57,6 +158,18 @@ public class BackgroundMode extends CordovaPlugin {
      */
     @Override
     public boolean execute (String action, JSONArray args, CallbackContext callback)
+    throws JSONException
+    {
+        boolean traced = Tracing.begin("BackgroundMode.", action);
+        try {
+            return executeAction(action, args, callback);
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    private boolean executeAction (String action, JSONArray args, CallbackContext callback)
+    throws JSONException
     {
         boolean validAction = true;
         switch (action)
@@ -66,7 +179,11 @@ public class BackgroundMode extends CordovaPlugin {
                 callback.success();
                 break;
             case "isEnabled":
-                callback.success(isForegroundStarted ? 1 : 0);
+                callback.success(isEnabled() ? 1 : 0);
+                break;
+            case "heartbeat":
+                Heartbeat.beat(cordova.getActivity(), args.optLong(0));
+                callback.success();
                 break;
             case "enable":
                 enableMode(callback);
@@ -74,7 +191,92 @@ public class BackgroundMode extends CordovaPlugin {
             case "disable":
                 disableMode(callback);
                 break;
+            case "events":
+                registerEventCallback(callback);
+                break;
+            case "destroyPolicy":
+                LifecyclePolicy.set(cordova.getActivity(), args.optString(0, LifecyclePolicy.STOP));
+                callback.success();
+                break;
+            case "lifecycleStats":
+                callback.success(LifecyclePolicy.getStats(cordova.getActivity()));
+                break;
+            case "headless":
+                setHeadlessScript(args.isNull(0) ? null : args.optString(0), callback);
+                break;
+            case "setRules":
+                setRules(args.getJSONObject(0));
+                callback.success();
+                break;
+            case "clearRules":
+                clearRules();
+                callback.success();
+                break;
+            case "networkState":
+                NetworkMonitor.refresh(cordova.getActivity());
+                JSONObject network = new JSONObject();
+                network.put("connected", NetworkMonitor.isConnected());
+                network.put("metered", NetworkMonitor.isMetered());
+                callback.success(network);
+                break;
+            case "rulesState":
+                callback.success(activationRules != null ? activationRules.getState() : new JSONObject());
+                break;
+            case "timerStart":
+                startTimer(args, callback);
+                break;
+            case "timerStop":
+                stopTimer(args.optString(0));
+                callback.success();
+                break;
+            case "locationStart":
+                startLocation(args.optJSONObject(0), callback);
+                break;
+            case "locationStop":
+                stopLocation();
+                callback.success();
+                break;
+            case "locationFlush":
+                LocationBatcher.flushNow();
+                callback.success();
+                break;
+            case "locationStats":
+                callback.success(LocationBatcher.getStats());
+                break;
+            case "tracing":
+                Tracing.setEnabled(args.optBoolean(0), args.optBoolean(1));
+                callback.success();
+                break;
+            case "traceExport":
+                exportTrace(callback);
+                break;
+            case "preflight":
+                runPreflight(callback, args.optBoolean(0));
+                break;
+            case "trimStats":
+                callback.success(MemoryGovernor.getStats());
+                break;
+            case "keepAliveStats":
+                // The audio may have changed in the service's process
+                KeepAliveStats.setAudio(SilentAudio.isPlaying(cordova.getActivity()));
+                callback.success(KeepAliveStats.getStats());
+                break;
+            case "foregroundStats":
+                callback.success(ForegroundLauncher.getStats());
+                break;
+            case "status":
+                callback.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+                        StatusCodec.encode(isEnabled())));
+                break;
+            case "drainRecords":
+                callback.sendPluginResult(new PluginResult(PluginResult.Status.OK,
+                        ForegroundService.getRecordBuffer().drain(args.optInt(0))));
+                break;
+            case "channelState":
+                getChannelState(callback);
+                break;
             case "requestPermissions":
+                scheduleWarmup();
                 requestNotificationPermission(callback);
                 break;
 			case "background":
@@ -94,16 +296,249 @@ public class BackgroundMode extends CordovaPlugin {
         return validAction;
     }
 	
+    /**
+     * Keep the callback to fire native events into the JS layer.
+     */
+    private void registerEventCallback(CallbackContext callback)
+    {
+        eventCallback = callback;
+        registerEventReceiver();
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    /**
+     * Fire an event in the JS layer, see exports.on().
+     *
+     * @param event The event's name.
+     * @param data  Optional event payload.
+     */
+    static void fireEvent(String event, Object data)
+    {
+        CallbackContext callback = eventCallback;
+        Context relay = eventRelay;
+        if (callback == null && relay == null) return;
+
+        JSONObject message = new JSONObject();
+        try {
+            message.put("event", event);
+            if (data != null) message.put("data", data);
+        } catch (JSONException ignored) {}
+
+        if (callback != null) {
+            sendEvent(callback, message);
+        } else {
+            Intent intent = new Intent(ACTION_EVENT).setPackage(relay.getPackageName());
+            intent.putExtra(EXTRA_MESSAGE, message.toString());
+            relay.sendBroadcast(intent);
+        }
+    }
+
+    private static void sendEvent(CallbackContext callback, JSONObject message)
+    {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    /**
+     * Forward the events of this process to the plugin's process, called
+     * by the service if it runs in its own android:process.
+     *
+     * @param context The service, null to stop forwarding.
+     */
+    static void setEventRelay(Context context)
+    {
+        eventRelay = context != null ? context.getApplicationContext() : null;
+    }
+
+    /**
+     * Receive the events forwarded by a service in another process.
+     */
+    private void registerEventReceiver()
+    {
+        if (eventReceiver != null) return;
+
+        eventReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                CallbackContext callback = eventCallback;
+                String message = intent.getStringExtra(EXTRA_MESSAGE);
+                if (callback == null || message == null) return;
+
+                try {
+                    sendEvent(callback, new JSONObject(message));
+                } catch (JSONException ignored) {}
+            }
+        };
+        // Not exported still accepts broadcasts from the app's own processes
+        ContextCompat.registerReceiver(cordova.getActivity().getApplicationContext(), eventReceiver,
+                new IntentFilter(ACTION_EVENT), ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    private void unregisterEventReceiver()
+    {
+        if (eventReceiver == null) return;
+
+        try {
+            cordova.getActivity().getApplicationContext().unregisterReceiver(eventReceiver);
+        } catch (Exception ignored) {}
+        eventReceiver = null;
+    }
+
+    /**
+     * Register a native periodic timer, see TimerScheduler.
+     */
+    private void startTimer(JSONArray args, CallbackContext callback)
+    {
+        TimerScheduler scheduler = TimerScheduler.get();
+        if (scheduler == null) {
+            callback.error("Background mode is not enabled.");
+            return;
+        }
+
+        long interval = args.optLong(1);
+        scheduler.register(args.optString(0), interval, args.optLong(2, interval / 10),
+                args.optString(3, "any"), callback);
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    /**
+     * Remove a native periodic timer.
+     */
+    private void stopTimer(String id)
+    {
+        TimerScheduler scheduler = TimerScheduler.get();
+        if (scheduler != null) scheduler.unregister(id);
+    }
+
+    /**
+     * Persist the script run headless once the activity is destroyed.
+     * Refused with the service in its own process: its WebView would share
+     * the data directory with the app's one, which Android 9+ does not
+     * allow, and the persisted script could be stale there.
+     */
+    private void setHeadlessScript(String script, CallbackContext callback)
+    {
+        Activity context = cordova.getActivity();
+        if (script != null && ForegroundService.isSeparateProcess(context)) {
+            callback.error("The headless script needs the service in the app's process.");
+            return;
+        }
+
+        HeadlessRunner.setScript(context, script);
+        callback.success();
+    }
+
+    /**
+     * Start batched location updates, delivered to the callback while the
+     * service runs.
+     */
+    private void startLocation(JSONObject options, CallbackContext callback)
+    {
+        // The batcher lives in the plugin's process, like the native timers.
+        // A service in its own process could not claim the location type
+        // for it, see ForegroundService.getOptionalTypes.
+        if (!ForegroundService.isRunning()) {
+            callback.error(isRunningElsewhere()
+                    ? "Location updates need the service in the app's process."
+                    : "Background mode is not enabled.");
+            return;
+        }
+
+        try {
+            LocationBatcher.start(cordova.getActivity(),
+                    options != null ? options : new JSONObject(), callback);
+        } catch (Exception e) {
+            callback.error(e.getMessage());
+            return;
+        }
+        updateLocationType();
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    /**
+     * Stop the location updates, the pending locations are delivered.
+     */
+    private void stopLocation()
+    {
+        if (!LocationBatcher.isActive()) return;
+
+        LocationBatcher.stop();
+        updateLocationType();
+    }
+
+    /**
+     * Let the service add or remove the location type.
+     */
+    private void updateLocationType()
+    {
+        synchronized (serviceLock) {
+            if (!ForegroundService.isRunning()) return;
+
+            try {
+                Activity context = cordova.getActivity();
+                Intent intent    = new Intent(context, ForegroundService.class);
+                intent.setAction(ForegroundService.ACTION_LOCATION);
+                context.startService(intent);
+            } catch (Exception e) {
+                android.util.Log.w("BackgroundMode", "Cannot update the service type", e);
+            }
+        }
+    }
+
+    /**
+     * Write the recorded trace sections to a file, off the bridge thread.
+     */
+    private void exportTrace(CallbackContext callback)
+    {
+        Context context = cordova.getActivity().getApplicationContext();
+
+        cordova.getThreadPool().execute(() -> {
+            try {
+                callback.success(Tracing.export(context));
+            } catch (Exception e) {
+                callback.error("Cannot export trace: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Check all requirements of the background mode at once.
+     */
+    private void runPreflight(CallbackContext callback, boolean refresh)
+    {
+        JSONObject settings = runtimeSettings != null ? runtimeSettings : defaultSettings;
+        Preflight.run(cordova.getActivity(), settings, cordova.getThreadPool(), callback, refresh);
+    }
+
+    /**
+     * Report if the notification channel is usable or blocked by the user.
+     */
+    private void getChannelState(CallbackContext callback)
+    {
+        Context context = cordova.getActivity().getApplicationContext();
+        JSONObject settings = runtimeSettings != null ? runtimeSettings : defaultSettings;
+
+        cordova.getThreadPool().execute(() ->
+                callback.success(NotificationChannels.getState(context, settings)));
+    }
+
 	/**
 	 * Request notification permission for Android 13+
 	 */
 	private void requestNotificationPermission(CallbackContext callback)
 	{
-		if (permissionCallback != null) {
-		    callback.error("Permission request already in progress.");
-		}
 	    // Android < 13 → permission not required
-	    else if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+	    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
 	        callback.success();
 	    }
 	    // Already granted → immediate success
@@ -112,13 +547,16 @@ public class BackgroundMode extends CordovaPlugin {
 	    }
 		// Not Granted - Request Permissions
 		else {
-		    // Store callback for later
-		    permissionCallback = callback;
-	
 			// Tell Cordova: result will come later
 		    PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
 		    result.setKeepCallback(true);
 		    callback.sendPluginResult(result);
+
+		    // Wait for the request in flight, if any
+		    synchronized (permissionCallbacks) {
+		        permissionCallbacks.add(callback);
+		        if (permissionCallbacks.size() > 1) return;
+		    }
 		
 		    // Request permissions
 			cordova.requestPermissions(
@@ -136,25 +574,136 @@ public class BackgroundMode extends CordovaPlugin {
 	public void onRequestPermissionResult(int requestCode, String[] permissions, int[] grantResults)
 	throws JSONException
 	{
-		// Not our request or callback already cleared
-	    if (requestCode != NOTIFICATION_PERMISSION_REQUEST_CODE || permissionCallback == null) return;
-	
-	    // Granted
-	    if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-			permissionCallback.success();
-		// Denied
-		} else {
+		// Not our request
+	    if (requestCode != NOTIFICATION_PERMISSION_REQUEST_CODE) return;
+
+	    List<CallbackContext> callbacks;
+	    synchronized (permissionCallbacks) {
+	        callbacks = new ArrayList<>(permissionCallbacks);
+	        permissionCallbacks.clear();
+	    }
+	    Preflight.invalidate();
+
+	    String error = null;
+	    // Denied
+	    if (grantResults.length == 0 || grantResults[0] != PackageManager.PERMISSION_GRANTED) {
 	        if (!ActivityCompat.shouldShowRequestPermissionRationale(
 	                cordova.getActivity(), POST_NOTIFICATIONS)) {
-	            permissionCallback.error("Notification permission permanently denied. Please enable it in app settings.");
+	            error = "Notification permission permanently denied. Please enable it in app settings.";
 	        } else {
-	            permissionCallback.error("Notification permission denied.");
+	            error = "Notification permission denied.";
 	        }
 		}
-		// Clear callback
-		permissionCallback = null;
+
+		for (CallbackContext callback : callbacks) {
+		    if (error == null) {
+		        callback.success();
+		    } else {
+		        callback.error(error);
+		    }
+		}
 	}
 
+    /**
+     * If the foreground service is started. The state is derived from the
+     * service itself: it may have been restarted or killed by the system
+     * without this plugin instance knowing, or run in another process.
+     * A start request counts until the service is up or timed out, a stop
+     * request from the moment it is sent, see stopRequested.
+     */
+    private boolean isEnabled()
+    {
+        if (stopRequested) return false;
+
+        if (BackgroundWorker.isPending()) return true;
+
+        if (ForegroundService.isRunning() || isRunningElsewhere()) {
+            isForegroundStarted = true;
+            startRequestedAt = 0;
+            return true;
+        }
+
+        long requestedAt = startRequestedAt;
+        if (isForegroundStarted && requestedAt > 0
+                && SystemClock.elapsedRealtime() - requestedAt < START_TIMEOUT_MS) {
+            return true;
+        }
+
+        // Stopped or killed meanwhile
+        isForegroundStarted = false;
+        startRequestedAt = 0;
+        return false;
+    }
+
+    private boolean isRunningElsewhere()
+    {
+        SharedState state = SharedState.get(cordova.getActivity());
+        return state != null && state.isRunning();
+    }
+
+    /**
+     * Share the settings with the service, which may run in another process.
+     */
+    private void shareSettings()
+    {
+        SharedState state = SharedState.get(cordova.getActivity());
+        if (state == null) return;
+
+        state.setDefaultSettings(defaultSettings);
+        state.setRuntimeSettings(runtimeSettings);
+    }
+
+    /**
+     * Let the rules decide when the background mode runs.
+     */
+    private void setRules(JSONObject spec)
+    {
+        clearRules();
+
+        activationRules = new ActivationRules(cordova.getActivity(), spec, this::applyRules);
+        cordova.getActivity().runOnUiThread(() -> {
+            if (activationRules != null) activationRules.start();
+        });
+    }
+
+    /**
+     * Back to manual enable and disable calls.
+     */
+    private void clearRules()
+    {
+        ActivationRules rules = activationRules;
+        activationRules = null;
+        if (rules != null) rules.stop();
+    }
+
+    /**
+     * Start or stop the service as decided by the rules.
+     */
+    private void applyRules(boolean active)
+    {
+        synchronized (serviceLock) {
+            applyRulesLocked(active);
+        }
+    }
+
+    private void applyRulesLocked(boolean active)
+    {
+        if (active == isEnabled()) return;
+
+        if (!active) {
+            stopForeground(null);
+            fireEvent("deactivate", null);
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU &&
+                 !cordova.hasPermission(POST_NOTIFICATIONS)) {
+            fireEvent("failure", "Notification permission required.");
+        }
+        else {
+            startForeground(null);
+            fireEvent(isEnabled() ? "activate" : "failure", null);
+        }
+    }
+
 	/**
 	 * Enable background mode
 	 */
@@ -183,16 +732,7 @@ public class BackgroundMode extends CordovaPlugin {
      */
     private void moveToForeground()
     {
-		Activity context = cordova.getActivity();		
-        if (isForegroundStarted) {			
-			Intent intent = new Intent(context, ForegroundService.class);
-			intent.setAction(ForegroundService.ACTION_FOREGROUND);
-			context.startService(intent);
-		}
-		// Fallback if no Foreground Service
-		else {
-			BackgroundModeExt.moveToForeground(context);
-		}
+		BackgroundModeExt.moveToForeground(cordova.getActivity());
     }
 
     /**
@@ -201,25 +741,58 @@ public class BackgroundMode extends CordovaPlugin {
     private void configure(JSONObject settings, boolean update)
     {
         if (update) {
-			if (!isForegroundStarted) return;
+            synchronized (serviceLock) {
+                // Would create a plain started service, which the system rejects from background
+                if (!isEnabled()) return;
 
-            Activity context = cordova.getActivity();
-			Intent intent    = new Intent(context, ForegroundService.class);
-            intent.setAction(ForegroundService.ACTION_UPDATE);
-            intent.putExtra("settings", settings.toString());
-			context.startService(intent);
+                runtimeSettings = settings;
+                shareSettings();
+
+                try {
+                    Activity context = cordova.getActivity();
+                    Intent intent    = new Intent(context, ForegroundService.class);
+                    intent.setAction(ForegroundService.ACTION_UPDATE);
+                    context.startService(intent);
+                } catch (Exception e) {
+                    android.util.Log.w("BackgroundMode", "Cannot update the notification", e);
+                }
+            }
         } else {
             defaultSettings = settings;
+            shareSettings();
+            scheduleWarmup();
         }
     }
 
+    /**
+     * Prepare the notification channel ahead of the first enable call.
+     * Runs once the UI is idle, nothing is touched during plugin load.
+     */
+    private void scheduleWarmup()
+    {
+        Activity context = cordova.getActivity();
+        if (context == null) return;
+
+        Context appContext = context.getApplicationContext();
+        Warmup.schedule(context, "channel", cordova.getThreadPool(),
+                () -> NotificationChannels.ensure(appContext, defaultSettings));
+    }
+
     /**
      * Bind the activity to a background service and put them into foreground state.
      */
     private void startForeground(CallbackContext callback)
+    {
+        synchronized (serviceLock) {
+            startForegroundLocked(callback);
+        }
+    }
+
+    private void startForegroundLocked(CallbackContext callback)
     {
         try {
-			if (!isForegroundStarted) {
+			// A pending expedited job is upgraded to the service if allowed
+			if (!isEnabled() || BackgroundWorker.isPending()) {
 				Activity context = cordova.getActivity();
 				Intent intent    = new Intent(context, ForegroundService.class);			
 				// Android 14+
@@ -230,28 +803,68 @@ public class BackgroundMode extends CordovaPlugin {
 	                context.startService(intent);
 	            }
 	            
+	            startRequestedAt = SystemClock.elapsedRealtime();
 	            isForegroundStarted = true;
+	            stopRequested = false;
+	            BackgroundWorker.upgrade(context);
 			}
             if (callback != null) callback.success();
 		} catch (Exception e) {
+			// Android 12+ from background, continue as expedited job until allowed again
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S &&
+			    e instanceof ForegroundServiceStartNotAllowedException) {
+				BackgroundWorker.enqueue(cordova.getActivity());
+				stopRequested = false;
+				if (callback != null) callback.success();
+				return;
+			}
 			if (callback != null) callback.error("Failed to start: " + e.getMessage());
 		}
     }
 
+    /**
+     * Upgrade from the expedited job to the foreground service, which
+     * is allowed to start again once the app is visible. Also drops the
+     * cached preflight report.
+     */
+    @Override
+    public void onResume(boolean multitasking)
+    {
+        // Settings may have changed while away
+        Preflight.invalidate();
+
+        if (BackgroundWorker.isPending()) {
+            startForeground(null);
+        }
+    }
+
     /**
      * Stop the foreground service.
      */
     private void stopForeground(CallbackContext callback)
     {
-		if (isForegroundStarted) {
+        synchronized (serviceLock) {
+            stopForegroundLocked(callback);
+        }
+    }
+
+    private void stopForegroundLocked(CallbackContext callback)
+    {
+		if (isEnabled()) {
 			try {
 				Activity context = cordova.getActivity();
 		        Intent intent    = new Intent(context, ForegroundService.class);
+		        // Also a job WorkManager kept from a process that died
+		        BackgroundWorker.cancel(context);
 		        context.stopService(intent);
+		        stopRequested = true;
 			} catch (Exception ignored) {
 				// It should not happen, but if it fails it's because it has stopped
 			}			
 	        isForegroundStarted = false;
+	        startRequestedAt = 0;
+	        runtimeSettings = null;
+	        shareSettings();
 		}
 		if (callback != null) callback.success();
     }
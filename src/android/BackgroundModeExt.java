@@ -6,13 +6,14 @@ import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.ActivityManager.AppTask;
 import android.app.AlertDialog;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -29,7 +30,6 @@ import org.apache.cordova.PluginResult.Status;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.Arrays;
 import java.util.List;
 
 import static android.content.Context.ACTIVITY_SERVICE;
@@ -49,6 +49,13 @@ public class BackgroundModeExt extends CordovaPlugin {
 
     private PowerManager.WakeLock wakeLock;
 
+    private static final String WAKE_LOCK_TRACE = "BackgroundModeExt.wakeLock";
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// Resolved auto-start settings screen, see resolveAppStartIntent
+	private static volatile Intent appStartIntent;
+
 	private CallbackContext appStartCallback;
 	private boolean appStartLaunched = false;
 
@@ -58,23 +65,67 @@ public class BackgroundModeExt extends CordovaPlugin {
 	// Flag to know if we are backgrounded
 	private volatile boolean isBackgrounded = false;
 
+	// Timer drift profiler, created by the first beacon
+	private DriftProfiler profiler;
+
+	// Keep-alive of the WebView engine in use, detected once
+	private WebViewAdapters.Adapter engineAdapter;
+
+	// Screen wake and keyguard dismissal, see wakeup and unlock
+	private WakePipeline wakePipeline;
+
+    @Override
+    protected void pluginInitialize() {
+        wakePipeline = new WakePipeline(cordova.getActivity(), this::wakeup);
+        engineAdapter = WebViewAdapters.detect(getEngineView());
+        android.util.Log.d("BackgroundModeExt", "WebView engine: " + engineAdapter.getName());
+    }
+
+    /**
+     * The view of the Cordova WebView engine, null if not available.
+     */
+    private View getEngineView() {
+        try {
+            return webView != null ? webView.getEngine().getView() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callback) {
+        boolean traced = Tracing.begin("BackgroundModeExt.", action);
+        try {
+            return executeAction(action, args, callback);
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    private boolean executeAction(String action, JSONArray args, CallbackContext callback) {
         boolean validAction = true;
 
         try {
             switch (action) {
                 case "battery":
+                    scheduleWarmup();
                     disableBatteryOptimizations();
                     callback.success();
                     break;
                 case "webview":
+                    scheduleWarmup();
                     disableWebViewOptimizations();
                     callback.success();
                     break;
                 case "appstart":
                     openAppStart(callback, args.opt(0));
                     break;
+                case "vendorBattery":
+                    openVendorBatterySettings(callback);
+                    break;
+                case "vendorProfile":
+                    callback.success(VendorProfiles.get(cordova.getActivity()).toJSON());
+                    break;
                 case "background":
                     moveToBackground();
                     callback.success();
@@ -95,14 +146,22 @@ public class BackgroundModeExt extends CordovaPlugin {
                     isDimmed(callback);
                     break;
                 case "wakeup":
-                    wakeup();
+                    wakePipeline.request(callback, false, ForegroundLauncher.isVisible());
+                    break;
+                case "beacon":
+                    onBeacon(args.optInt(0), args.optLong(1));
                     callback.success();
                     break;
-                case "unlock":
-                    wakeup();
-                    unlock();
+                case "profilerReport":
+                    callback.success(profiler != null ? profiler.toJSON() : new DriftProfiler().toJSON());
+                    break;
+                case "profilerReset":
+                    if (profiler != null) profiler.reset();
                     callback.success();
                     break;
+                case "unlock":
+                    wakePipeline.request(callback, true, ForegroundLauncher.isVisible());
+                    break;
                 default:
                     validAction = false;
             }
@@ -126,6 +185,8 @@ public class BackgroundModeExt extends CordovaPlugin {
 	    super.onStop();
 
 		isBackgrounded = true;
+		KeepAliveStats.setBackground(true);
+		wakePipeline.onHidden();
 		
 	    Activity activity = cordova.getActivity();
 	    if (activity == null) return;
@@ -135,6 +196,9 @@ public class BackgroundModeExt extends CordovaPlugin {
 	
 	    // Start keepAliveRunnable only if requested
 	    if (keepAliveRequested) {
+	        View view = getEngineView();
+	        if (view != null) engineAdapter.onBackground(view);
+
 	        activity.getWindow().getDecorView().post(keepAliveRunnable);
 	    }
 	}
@@ -162,12 +226,19 @@ public class BackgroundModeExt extends CordovaPlugin {
 	    super.onStart();
 
 		isBackgrounded = false;
+		KeepAliveStats.setBackground(false);
 	
 	    Activity activity = cordova.getActivity();
 	    if (activity == null) return;
+
+	    wakePipeline.onVisible();
 	
 	    // Stop keepAlive when returning to foreground
 	    activity.getWindow().getDecorView().removeCallbacks(keepAliveRunnable);
+	    KeepAliveStats.setVisibility(false);
+
+	    View view = getEngineView();
+	    if (view != null) engineAdapter.onForeground(view);
 	}
 
     private void moveToBackground() {
@@ -199,17 +270,7 @@ public class BackgroundModeExt extends CordovaPlugin {
     public static void moveToForeground(Context context, Activity activity) {
         if (context == null) return;
 
-        Intent intent = getLaunchIntent(context);
-        if (intent == null) return;
-
-        intent.addFlags(
-            Intent.FLAG_ACTIVITY_NEW_TASK |
-            Intent.FLAG_ACTIVITY_REORDER_TO_FRONT |
-            Intent.FLAG_ACTIVITY_SINGLE_TOP |
-            Intent.FLAG_ACTIVITY_CLEAR_TOP
-        );
-
-        context.startActivity(intent);
+        ForegroundLauncher.bringToFront(context);
 
         // Apply window flags only if Activity is available
         if (activity != null) {
@@ -219,8 +280,33 @@ public class BackgroundModeExt extends CordovaPlugin {
 
 	private void disableWebViewOptimizations() {
 		keepAliveRequested = true;
+		Heartbeat.addListener(stallListener);
     }
 
+	// Forces a keep-alive cycle as soon as the WebView stalls
+	private final Heartbeat.Listener stallListener = new Heartbeat.Listener() {
+		@Override
+		public void onStall(long silentMs) {
+			if (!keepAliveRequested || !isBackgrounded) return;
+
+			Activity activity = cordova.getActivity();
+			if (activity == null) return;
+
+			View decor = activity.getWindow().getDecorView();
+			decor.removeCallbacks(keepAliveRunnable);
+			decor.post(keepAliveRunnable);
+		}
+
+		@Override
+		public void onRecovered(long stalledMs) { }
+	};
+
+	@Override
+	public void onDestroy() {
+		Heartbeat.removeListener(stallListener);
+		super.onDestroy();
+	}
+
     private final Runnable keepAliveRunnable = new Runnable() {
 	    @Override
 	    public void run() {
@@ -228,19 +314,33 @@ public class BackgroundModeExt extends CordovaPlugin {
 	
 	        Activity activity = cordova.getActivity();
 	        if (activity == null) return;
-	
-	        View webViewView = null;
-	        try {
-	            webViewView = webView != null ? webView.getEngine().getView() : null;
-	        } catch (Exception ignored) { }
-	
-	        if (webViewView != null) {
-				// Force visibility to keep JS timers and sensors alive
-	            forceVisibility(webViewView, 5, 200); // 5 retries, 200ms interval
+
+	        // The silent audio keeps the app alive instead, see ForegroundService,
+	        // which may play it in its own process
+	        boolean audio = SilentAudio.isPlaying(activity);
+	        KeepAliveStats.setAudio(audio);
+	        KeepAliveStats.setVisibility(!audio);
+
+	        if (!audio) {
+	            boolean traced = Tracing.begin("BackgroundModeExt.keepAlive");
+	            try {
+	                View webViewView = getEngineView();
+	                if (webViewView != null) {
+	                    // Force visibility to keep JS timers and sensors alive
+	                    forceVisibility(webViewView, 5, 200); // 5 retries, 200ms interval
+	                }
+
+	                KeepAliveStats.onCycle();
+	                if (profiler != null) profiler.onKeepAlive();
+	            } finally {
+	                Tracing.end(traced);
+	            }
 	        }
 	
-	        // Schedule next wake cycle conservatively
-	        activity.getWindow().getDecorView().postDelayed(this, 5000); // 5s interval
+	        // Schedule next wake cycle, shorter on vendors killing hidden apps early
+	        activity.getWindow().getDecorView().postDelayed(this,
+	                Math.max(VendorProfiles.MIN_KEEP_ALIVE_INTERVAL,
+	                        VendorProfiles.get(activity).keepAliveInterval));
 	    }
 	};
 	
@@ -251,14 +351,11 @@ public class BackgroundModeExt extends CordovaPlugin {
     	if (view == null) return;
 	    // Wait until Android marks it non-visible
 	    if (view.isAttachedToWindow() && view.getWindowVisibility() != View.VISIBLE) {
+	        boolean traced = Tracing.begin("BackgroundModeExt.forceVisibility");
 	        try {
-	            // Crosswalk-specific hook
-	            Class.forName("org.crosswalk.engine.XWalkCordovaView")
-	                    .getMethod("onShow")
-	                    .invoke(view);
-	        } catch (Exception ignore) {
-	            // System WebView fallback
-	            view.dispatchWindowVisibilityChanged(View.VISIBLE);
+	            engineAdapter.keepAlive(view);
+	        } finally {
+	            Tracing.end(traced);
 	        }
 	        return;
 	    }
@@ -268,6 +365,28 @@ public class BackgroundModeExt extends CordovaPlugin {
 	    view.postDelayed(() -> forceVisibility(view, retries - 1, delayMs), delayMs);
 	}
 
+    /**
+     * Record a beacon of the JS timer used to profile the drift.
+     */
+    private void onBeacon(int seq, long interval) {
+        if (profiler == null) {
+            profiler = new DriftProfiler();
+        }
+        profiler.onBeacon(seq, interval, getProfilerState());
+    }
+
+    private String getProfilerState() {
+        if (!isBackgrounded) return DriftProfiler.STATE_FOREGROUND;
+
+        PowerManager pm = (PowerManager) getService(POWER_SERVICE);
+        if (pm == null) return DriftProfiler.STATE_BACKGROUND;
+
+        if (pm.isDeviceIdleMode()) return DriftProfiler.STATE_DOZE;
+        if (!pm.isInteractive()) return DriftProfiler.STATE_SCREEN_OFF;
+
+        return DriftProfiler.STATE_BACKGROUND;
+    }
+
     @SuppressLint("BatteryLife")
     private void disableBatteryOptimizations() {
         Activity activity = cordova.getActivity();
@@ -299,32 +418,8 @@ public class BackgroundModeExt extends CordovaPlugin {
 	        return;
 	    }
     
-        PackageManager pm = activity.getPackageManager();
-        Intent intent = null;
+        Intent intent = new Intent(resolveAppStartIntent(activity.getApplicationContext()));
     
-        for (Intent appStartIntent : getAppStartIntents()) {
-            try {
-                if (pm.resolveActivity(appStartIntent, MATCH_DEFAULT_ONLY) != null) {
-					android.util.Log.d("BackgroundModeExt", "Found auto-start intent: " + appStartIntent);
-					
-					intent = appStartIntent;
-                    break;
-                } else {
-                    android.util.Log.d("BackgroundModeExt", "Skipped auto-start intent: " + appStartIntent);
-                }
-            } catch (Exception e) {
-                android.util.Log.e("BackgroundModeExt", "Error resolving auto-start intent: " + appStartIntent, e);
-            }
-        }
-    
-        // Fallback to app settings if no intent resolved
-        if (intent == null) {
-            intent = new Intent(android.provider.Settings.ACTION_APPLICATION_DETAILS_SETTINGS)
-					.setData(Uri.parse("package:" + activity.getPackageName()));
-			
-			android.util.Log.d("BackgroundModeExt", "Fallback to app settings");
-        }
-		
 		// Open settings
 		intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 
@@ -351,6 +446,117 @@ public class BackgroundModeExt extends CordovaPlugin {
 		}
     }
 
+    /**
+     * Resolve the manufacturer specific auto-start settings screen.
+     * The result is cached until the process is under memory pressure.
+     */
+    private static Intent resolveAppStartIntent(Context context) {
+        Intent intent = appStartIntent;
+        if (intent != null) return intent;
+
+        boolean traced = Tracing.begin("BackgroundModeExt.resolveAppStart");
+        try {
+            return probeAppStartIntent(context);
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    private static Intent probeAppStartIntent(Context context) {
+        Intent intent = null;
+
+        PackageManager pm = context.getPackageManager();
+    
+        // Only the screens of the device's vendor, see VendorProfiles
+        for (Intent candidate : VendorProfiles.get(context).autoStart) {
+            try {
+                if (pm.resolveActivity(candidate, MATCH_DEFAULT_ONLY) != null) {
+					android.util.Log.d("BackgroundModeExt", "Found auto-start intent: " + candidate);
+					
+					intent = candidate;
+                    break;
+                } else {
+                    android.util.Log.d("BackgroundModeExt", "Skipped auto-start intent: " + candidate);
+                }
+            } catch (Exception e) {
+                android.util.Log.e("BackgroundModeExt", "Error resolving auto-start intent: " + candidate, e);
+            }
+        }
+    
+        // Fallback to app settings if no intent resolved
+        if (intent == null) {
+            intent = new Intent(android.provider.Settings.ACTION_APPLICATION_DETAILS_SETTINGS)
+					.setData(Uri.parse("package:" + context.getPackageName()));
+			
+			android.util.Log.d("BackgroundModeExt", "Fallback to app settings");
+        }
+
+        appStartIntent = intent;
+        return intent;
+    }
+
+    /**
+     * Open the vendor's battery settings of the device, or the system's
+     * list of battery optimizations if the vendor has none.
+     */
+    private void openVendorBatterySettings(CallbackContext callback) {
+        Activity activity = cordova.getActivity();
+        if (activity == null) {
+            callback.error("No activity");
+            return;
+        }
+
+        Intent intent = null;
+        PackageManager pm = activity.getPackageManager();
+
+        for (Intent candidate : VendorProfiles.get(activity).battery) {
+            if (pm.resolveActivity(candidate, MATCH_DEFAULT_ONLY) != null) {
+                intent = new Intent(candidate);
+                break;
+            }
+        }
+        if (intent == null) {
+            intent = new Intent(android.provider.Settings.ACTION_IGNORE_BATTERY_OPTIMIZATION_SETTINGS);
+        }
+
+        try {
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            activity.startActivity(intent);
+            callback.success();
+        } catch (Exception e) {
+            callback.error("Failed to open");
+        }
+    }
+
+    /**
+     * If the manufacturer has an auto-start settings screen, other than
+     * the app details used as fallback.
+     */
+    static boolean hasAppStartSettings(Context context) {
+        Intent intent = resolveAppStartIntent(context);
+        return !android.provider.Settings.ACTION_APPLICATION_DETAILS_SETTINGS.equals(intent.getAction());
+    }
+
+    /**
+     * Forget the resolved auto-start screen, see MemoryGovernor.
+     */
+    static void dropCaches() {
+        appStartIntent = null;
+    }
+
+    /**
+     * Resolve the auto-start screen once the UI is idle, so that a later
+     * openAppStart call does not need to probe the package manager.
+     */
+    private void scheduleWarmup() {
+        Activity activity = cordova.getActivity();
+        if (activity == null) return;
+
+        Context context = activity.getApplicationContext();
+        Warmup.schedule(activity, "appstart", cordova.getThreadPool(),
+                () -> resolveAppStartIntent(context));
+    }
+
 	private void showAppStartDialog(Activity activity, Intent intent, JSONObject spec) {
 	    if (activity == null) return;
 	
@@ -481,11 +687,16 @@ public class BackgroundModeExt extends CordovaPlugin {
 	    }, 3000); // 2–3 seconds is ideal
 	}
 
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private void setExcludeFromRecents(boolean value) {
-        ActivityManager am = (ActivityManager) getService(ACTIVITY_SERVICE);
+        setExcludeFromRecents(cordova.getActivity(), value);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static void setExcludeFromRecents(Context context, boolean value) {
+        if (context == null || SDK_INT < 21) return;
 
-        if (am == null || SDK_INT < 21) return;
+        ActivityManager am = (ActivityManager) context.getSystemService(ACTIVITY_SERVICE);
+        if (am == null) return;
 
         try {
             List<AppTask> tasks = am.getAppTasks();
@@ -522,15 +733,6 @@ public class BackgroundModeExt extends CordovaPlugin {
         }
     }
 
-    private void unlock() {
-        Activity activity = cordova.getActivity();
-        addScreenAndKeyguardFlags(activity);
-        Intent intent = getLaunchIntent();
-        if (intent != null) {
-            activity.startActivity(intent);
-        }
-    }
-
     @SuppressWarnings("deprecation")
     private void acquireWakeLock() {
         PowerManager pm = (PowerManager) getService(POWER_SERVICE);
@@ -549,6 +751,7 @@ public class BackgroundModeExt extends CordovaPlugin {
         
         // Acquire with timeout (3 seconds) for safety
         wakeLock.acquire(3000);
+        traceWakeLock(3000);
     }
 
     private void releaseWakeLock() {
@@ -560,26 +763,28 @@ public class BackgroundModeExt extends CordovaPlugin {
             }
             wakeLock = null;
         }
+        endWakeLockTrace();
     }
 
-    private static void addScreenAndKeyguardFlags(Activity activity) {
-        if (activity == null) return;
+    // Async slice of the held wake lock, 0 if none
+    private int wakeLockTrace = 0;
 
-        activity.runOnUiThread(() -> {
-            try {
-                Window window = activity.getWindow();
-                if (window != null) {
-                    window.addFlags(
-                        FLAG_ALLOW_LOCK_WHILE_SCREEN_ON |
-                        FLAG_SHOW_WHEN_LOCKED |
-                        FLAG_TURN_SCREEN_ON |
-                        FLAG_DISMISS_KEYGUARD
-                    );
-                }
-            } catch (Exception e) {
-                // Silently fail
-            }
-        });
+    private final Runnable wakeLockTimeout = this::endWakeLockTrace;
+
+    /**
+     * Trace the wake lock until released or timed out.
+     */
+    private void traceWakeLock(long timeout) {
+        wakeLockTrace = Tracing.beginAsync(WAKE_LOCK_TRACE);
+        if (wakeLockTrace != 0) mainHandler.postDelayed(wakeLockTimeout, timeout);
+    }
+
+    private void endWakeLockTrace() {
+        if (wakeLockTrace == 0) return;
+
+        mainHandler.removeCallbacks(wakeLockTimeout);
+        Tracing.endAsync(WAKE_LOCK_TRACE, wakeLockTrace);
+        wakeLockTrace = 0;
     }
 
     private static void clearScreenAndKeyguardFlags(Activity activity) {
@@ -617,118 +822,10 @@ public class BackgroundModeExt extends CordovaPlugin {
         });
     }
 
-    private Intent getLaunchIntent() {
-        Activity activity = cordova.getActivity();
-        if (activity == null) return null;
-
-        return getLaunchIntent(activity.getApplicationContext());
-    }
-
-    private static Intent getLaunchIntent(Context context) {
-        if (context == null) return null;
-
-        return context.getPackageManager().getLaunchIntentForPackage(context.getPackageName());
-    }
-
     private Object getService(String name) {
         Activity activity = cordova.getActivity();
         if (activity == null) return null;
         
         return activity.getSystemService(name);
     }
-
-    private List<Intent> getAppStartIntents() {
-        return Arrays.asList(
-            // Xiaomi
-            new Intent().setComponent(new ComponentName(
-                "com.miui.securitycenter",
-                "com.miui.permcenter.autostart.AutoStartManagementActivity"
-            )),
-            // Letv
-            new Intent().setComponent(new ComponentName(
-                "com.letv.android.letvsafe",
-                "com.letv.android.letvsafe.AutobootManageActivity"
-            )),
-            // Huawei
-            new Intent().setComponent(new ComponentName(
-                "com.huawei.systemmanager",
-                "com.huawei.systemmanager.appcontrol.activity.StartupAppControlActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.huawei.systemmanager",
-                "com.huawei.systemmanager.optimize.process.ProtectActivity"
-            )),
-            // Oppo
-            new Intent().setComponent(new ComponentName(
-                "com.coloros.safecenter",
-                "com.coloros.safecenter.permission.startup.StartupAppListActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.coloros.safecenter",
-                "com.coloros.safecenter.startupapp.StartupAppListActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.oppo.safe",
-                "com.oppo.safe.permission.startup.StartupAppListActivity"
-            )),
-            // Vivo
-            new Intent().setComponent(new ComponentName(
-                "com.iqoo.secure",
-                "com.iqoo.secure.ui.phoneoptimize.AddWhiteListActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.iqoo.secure",
-                "com.iqoo.secure.ui.phoneoptimize.BgStartUpManager"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.vivo.permissionmanager",
-                "com.vivo.permissionmanager.activity.BgStartUpManagerActivity"
-            )),
-            // Asus
-            new Intent().setComponent(new ComponentName(
-                "com.asus.mobilemanager",
-                "com.asus.mobilemanager.autostart.AutoStartActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.asus.mobilemanager",
-                "com.asus.mobilemanager.entry.FunctionActivity"
-            )).setData(Uri.parse("mobilemanager://function/entry/AutoStart")),
-            // Samsung Global & China
-            new Intent().setComponent(new ComponentName(
-                "com.samsung.android.sm",
-                "com.samsung.android.sm.ui.ram.AutoRunActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.samsung.android.sm_cn",
-                "com.samsung.android.sm.ui.ram.AutoRunActivity"
-            )),
-            // Meizu
-            new Intent().setComponent(ComponentName.unflattenFromString(
-                "com.meizu.safe/.permission.SmartBGActivity"
-            )),
-            // Lenovo / ZUI
-            new Intent().setComponent(new ComponentName(
-                "com.zui.safecenter",
-                "com.lenovo.safecenter.MainTab.LeSafeMainActivity"
-            )),
-            // Nubia
-            new Intent().setComponent(ComponentName.unflattenFromString(
-                "cn.nubia.security2/.selfstart.ui.SelfStartActivity"
-            )),
-            // Zebra
-            new Intent().setComponent(new ComponentName(
-                "com.symbol.deviceenterprise",
-                "com.symbol.deviceenterprise.DeviceAdminActivity"
-            )),
-            // Other manufacturers
-            new Intent().setAction("com.letv.android.permissionautoboot"),
-            new Intent().setComponent(ComponentName.unflattenFromString(
-                "com.iqoo.secure/.MainActivity"
-            )),
-            new Intent().setComponent(new ComponentName(
-                "com.yulong.android.coolsafe",
-                ".ui.activity.autorun.AutoRunListActivity"
-            ))
-        );
-    }
 }
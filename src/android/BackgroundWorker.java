@@ -0,0 +1,204 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Notification;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ForegroundInfo;
+import androidx.work.ListenableWorker;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the process running as an expedited job while Android 12+ does not
+ * allow to start the foreground service, e.g. when enabled from background.
+ *
+ * The job holds on until the foreground service is up again, see upgrade,
+ * or until the system stops it. No thread is blocked meanwhile: the work's
+ * future is completed by upgrade, cancel or a timeout. Below Android 12
+ * expedited jobs run as a foreground service themselves, see
+ * getForegroundInfoAsync.
+ *
+ * Each start reports through the "backend" event which backend runs and
+ * how long the work waited for it, "none" once the job ended without the
+ * service taking over.
+ */
+public class BackgroundWorker extends ListenableWorker {
+
+    static final String BACKEND_SERVICE = "service";
+    static final String BACKEND_WORK = "work";
+    static final String BACKEND_NONE = "none";
+
+    private static final String UNIQUE_NAME = "de.einfachhans.BackgroundMode.fallback";
+    private static final String KEY_ENQUEUED_AT = "enqueuedAt";
+
+    // Expedited jobs get about 10 minutes, leave room to finish
+    private static final long MAX_RUN_MS = 9 * 60 * 1000;
+
+    // Time of the enqueue request, 0 if not pending
+    private static volatile long enqueuedAt = 0;
+
+    // Completes the running job's future, null if none runs
+    private static final AtomicReference<CallbackToFutureAdapter.Completer<Result>> running =
+            new AtomicReference<>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable timeout = this::end;
+
+    private CallbackToFutureAdapter.Completer<Result> completer;
+
+    public BackgroundWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Run the background work as an expedited job.
+     */
+    static void enqueue(Context context) {
+        if (isPending()) return;
+
+        enqueuedAt = SystemClock.elapsedRealtime();
+
+        Data data = new Data.Builder()
+                .putLong(KEY_ENQUEUED_AT, System.currentTimeMillis())
+                .build();
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BackgroundWorker.class)
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .setInputData(data)
+                .build();
+
+        WorkManager.getInstance(context.getApplicationContext())
+                .enqueueUniqueWork(UNIQUE_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    /**
+     * Stop the job, e.g. when the background mode gets disabled.
+     */
+    static void cancel(Context context) {
+        enqueuedAt = 0;
+        finish();
+        WorkManager.getInstance(context.getApplicationContext()).cancelUniqueWork(UNIQUE_NAME);
+    }
+
+    /**
+     * The foreground service got started, let a pending job end. Also
+     * cancels a job WorkManager kept from a process that died.
+     */
+    static void upgrade(Context context) {
+        long waited = isPending() ? SystemClock.elapsedRealtime() - enqueuedAt : 0;
+        cancel(context);
+        report(BACKEND_SERVICE, waited);
+    }
+
+    /**
+     * If the job is enqueued or running.
+     */
+    static boolean isPending() {
+        return enqueuedAt > 0;
+    }
+
+    /**
+     * Called on the main thread, the returned future stays pending until
+     * upgrade, cancel, onStopped or MAX_RUN_MS.
+     *
+     * WorkManager persists the job and runs it again after the process
+     * died or the device rebooted. Nothing in this process asked for it
+     * then, so it ends right away.
+     */
+    @NonNull
+    @Override
+    public ListenableFuture<Result> startWork() {
+        if (!isPending()) {
+            return CallbackToFutureAdapter.getFuture(completer -> completer.set(Result.success()));
+        }
+
+        long enqueued = getInputData().getLong(KEY_ENQUEUED_AT, 0);
+        long waited = enqueued > 0 ? Math.max(0, System.currentTimeMillis() - enqueued) : -1;
+
+        ListenableFuture<Result> future = CallbackToFutureAdapter.getFuture(completer -> {
+            this.completer = completer;
+            running.set(completer);
+            report(BACKEND_WORK, waited);
+            handler.postDelayed(timeout, MAX_RUN_MS);
+            return "BackgroundWorker";
+        });
+        // Upgraded or cancelled, drop the timeout
+        future.addListener(() -> handler.removeCallbacks(timeout), Runnable::run);
+        return future;
+    }
+
+    @Override
+    public void onStopped() {
+        end();
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<ForegroundInfo> getForegroundInfoAsync() {
+        return CallbackToFutureAdapter.getFuture(completer -> completer.set(getForegroundInfo()));
+    }
+
+    private ForegroundInfo getForegroundInfo() {
+        JSONObject settings = BackgroundMode.getRuntimeSettings();
+        if (settings == null) settings = BackgroundMode.getDefaultSettings();
+
+        Notification notification = ForegroundService.buildNotification(getApplicationContext(), settings);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new ForegroundInfo(ForegroundService.NOTIFICATION_ID, notification,
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        }
+        return new ForegroundInfo(ForegroundService.NOTIFICATION_ID, notification);
+    }
+
+    /**
+     * Timed out or stopped by the system. Neither upgraded nor cancelled,
+     * the background work ends here. Does nothing if this job already
+     * completed, a later job may be pending meanwhile.
+     */
+    private void end() {
+        handler.removeCallbacks(timeout);
+        if (completer == null || !running.compareAndSet(completer, null)) return;
+
+        if (enqueuedAt > 0) {
+            enqueuedAt = 0;
+            report(BACKEND_NONE, -1);
+        }
+        completer.set(Result.success());
+    }
+
+    /**
+     * Complete the running job's future.
+     */
+    private static void finish() {
+        CallbackToFutureAdapter.Completer<Result> completer = running.getAndSet(null);
+        if (completer != null) completer.set(Result.success());
+    }
+
+    private static void report(String backend, long waited) {
+        JSONObject data = new JSONObject();
+        try {
+            data.put("backend", backend);
+            data.put("waited", waited);
+        } catch (JSONException ignored) {}
+        BackgroundMode.fireEvent("backend", data);
+    }
+}
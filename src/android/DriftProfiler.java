@@ -0,0 +1,167 @@
+package de.einfachhans.BackgroundMode;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Measures how far a scheduled JS timer drifts from wall-clock time.
+ *
+ * The JS layer fires a beacon on a fixed interval, each beacon records the
+ * delay against the expected interval into a histogram per device state.
+ * Drift is also split by whether keep-alive cycles ran in between, to tell
+ * if forcing the WebView visible keeps the timers on schedule.
+ */
+final class DriftProfiler {
+
+    // Device states the samples are grouped by
+    static final String STATE_FOREGROUND = "foreground";
+    static final String STATE_BACKGROUND = "background";
+    static final String STATE_SCREEN_OFF = "screenOff";
+    static final String STATE_DOZE = "doze";
+
+    private static final String[] STATES = {
+        STATE_FOREGROUND, STATE_BACKGROUND, STATE_SCREEN_OFF, STATE_DOZE
+    };
+
+    // Upper bounds (ms) of the histogram buckets, the last bucket is open
+    private static final long[] BUCKETS = {
+        50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+
+    private static final class Histogram {
+        final int[] counts = new int[BUCKETS.length + 1];
+        long total = 0;
+        long max = 0;
+        int count = 0;
+
+        void add(long drift) {
+            int i = 0;
+            while (i < BUCKETS.length && drift > BUCKETS[i]) i++;
+            counts[i]++;
+            total += drift;
+            max = Math.max(max, drift);
+            count++;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONArray list = new JSONArray();
+            for (int c : counts) list.put(c);
+
+            JSONObject json = new JSONObject();
+            json.put("counts", list);
+            json.put("count", count);
+            json.put("mean", count > 0 ? total / count : 0);
+            json.put("max", max);
+            json.put("p50", percentile(0.5));
+            json.put("p95", percentile(0.95));
+            return json;
+        }
+
+        // Upper bound of the bucket containing the percentile, -1 if open
+        private long percentile(double p) {
+            if (count == 0) return 0;
+
+            int rank = (int) Math.ceil(count * p), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i < BUCKETS.length ? BUCKETS[i] : -1;
+            }
+            return -1;
+        }
+    }
+
+    private final Histogram[] histograms = new Histogram[STATES.length];
+    private Histogram withKeepAlive;
+    private Histogram withoutKeepAlive;
+
+    private long lastBeaconAt = 0;
+    private int lastSeq = -1;
+    private int keepAliveCycles = 0;
+    private int totalKeepAliveCycles = 0;
+
+    DriftProfiler() {
+        reset();
+    }
+
+    /**
+     * Drop all samples.
+     */
+    synchronized void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        withKeepAlive = new Histogram();
+        withoutKeepAlive = new Histogram();
+        lastBeaconAt = 0;
+        lastSeq = -1;
+        keepAliveCycles = 0;
+        totalKeepAliveCycles = 0;
+    }
+
+    /**
+     * Count a keep-alive cycle, called by the keep-alive runnable.
+     */
+    synchronized void onKeepAlive() {
+        keepAliveCycles++;
+        totalKeepAliveCycles++;
+    }
+
+    /**
+     * Record a beacon of the JS timer.
+     *
+     * @param seq      Sequence number of the beacon.
+     * @param interval Interval in ms the JS timer was scheduled with.
+     * @param state    One of the STATE_ constants.
+     */
+    synchronized void onBeacon(int seq, long interval, String state) {
+        long now = SystemClock.elapsedRealtime();
+
+        // Only consecutive beacons tell the drift of a single interval
+        if (lastBeaconAt > 0 && seq == lastSeq + 1) {
+            long drift = Math.max(0, now - lastBeaconAt - interval);
+
+            histograms[indexOf(state)].add(drift);
+            if (!STATE_FOREGROUND.equals(state)) {
+                (keepAliveCycles > 0 ? withKeepAlive : withoutKeepAlive).add(drift);
+            }
+        }
+
+        lastBeaconAt = now;
+        lastSeq = seq;
+        keepAliveCycles = 0;
+    }
+
+    /**
+     * Export the histograms.
+     */
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONArray bounds = new JSONArray();
+        for (long b : BUCKETS) bounds.put(b);
+
+        JSONObject states = new JSONObject();
+        for (int i = 0; i < STATES.length; i++) {
+            states.put(STATES[i], histograms[i].toJSON());
+        }
+
+        JSONObject keepAlive = new JSONObject();
+        keepAlive.put("cycles", totalKeepAliveCycles);
+        keepAlive.put("with", withKeepAlive.toJSON());
+        keepAlive.put("without", withoutKeepAlive.toJSON());
+
+        JSONObject json = new JSONObject();
+        json.put("buckets", bounds);
+        json.put("states", states);
+        json.put("keepAlive", keepAlive);
+        return json;
+    }
+
+    private static int indexOf(String state) {
+        for (int i = 0; i < STATES.length; i++) {
+            if (STATES[i].equals(state)) return i;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,263 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static android.content.Context.NOTIFICATION_SERVICE;
+
+/**
+ * Brings the app to the foreground as fast as possible.
+ *
+ * The launch component is resolved once and the launch intents are cached.
+ * Android 10+ blocks activity starts from the background, so in addition a
+ * heads-up notification is posted on a high importance channel to open the
+ * app with a tap. If the app declares USE_FULL_SCREEN_INTENT, which Play
+ * only allows for alarm and calling apps, the notification carries a
+ * full-screen intent the system turns into an activity start.
+ *
+ * The time from the request to the first frame drawn afterwards is
+ * measured. The visibility of the app is tracked through the activity
+ * lifecycle callbacks, see install.
+ */
+final class ForegroundLauncher {
+
+    private static final int NOTIFICATION_ID = 102;
+
+    private static final String CHANNEL_ID = "background_mode_launch";
+
+    private static final String USE_FULL_SCREEN_INTENT = "android.permission.USE_FULL_SCREEN_INTENT";
+
+    private static final int LAUNCH_FLAGS =
+            Intent.FLAG_ACTIVITY_NEW_TASK |
+            Intent.FLAG_ACTIVITY_REORDER_TO_FRONT |
+            Intent.FLAG_ACTIVITY_SINGLE_TOP |
+            Intent.FLAG_ACTIVITY_CLEAR_TOP;
+
+    private static volatile ComponentName launchComponent;
+    private static volatile PendingIntent fullScreenIntent;
+
+    // A request not followed by a frame in time is not measured
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+
+    private static Application.ActivityLifecycleCallbacks callbacks;
+
+    // Started activities of the app, see install
+    private static int startedActivities = 0;
+
+    // If an activity of the app is started, see onVisible/onHidden
+    private static volatile boolean visible = false;
+
+    // Pending request and the measured latencies
+    private static volatile long requestedAt = 0;
+    private static volatile long lastLatencyMs = -1;
+    private static volatile long totalLatencyMs = 0;
+    private static volatile int launches = 0;
+
+    private ForegroundLauncher() {}
+
+    /**
+     * Returns a new launch intent of the app, null if there is none.
+     * Only the first call queries the package manager.
+     */
+    static Intent getLaunchIntent(Context context) {
+        ComponentName component = launchComponent;
+        if (component == null) {
+            Intent intent = context.getPackageManager()
+                    .getLaunchIntentForPackage(context.getPackageName());
+            if (intent == null) return null;
+
+            component = intent.getComponent();
+            launchComponent = component;
+        }
+
+        return new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER)
+                .setComponent(component);
+    }
+
+    /**
+     * Track the visibility of the app's activities, subsequent calls have
+     * no effect. Called while the plugins load, before the activity starts.
+     */
+    static synchronized void install(Activity activity) {
+        if (callbacks != null) return;
+
+        callbacks = new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityStarted(Activity activity) {
+                if (startedActivities++ == 0) onVisible(activity);
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+                if (startedActivities > 0 && --startedActivities == 0) onHidden();
+            }
+
+            @Override
+            public void onActivityCreated(Activity a, Bundle state) { }
+
+            @Override
+            public void onActivityResumed(Activity a) { }
+
+            @Override
+            public void onActivityPaused(Activity a) { }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity a, Bundle state) { }
+
+            @Override
+            public void onActivityDestroyed(Activity a) { }
+        };
+        activity.getApplication().registerActivityLifecycleCallbacks(callbacks);
+    }
+
+    /**
+     * If an activity of the app is started.
+     */
+    static boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Pre-build the full-screen intent, e.g. when the service starts.
+     */
+    static void prepare(Context context) {
+        getFullScreenIntent(context.getApplicationContext());
+    }
+
+    /**
+     * Bring the app to the foreground.
+     *
+     * @param context Any context, the application context is used.
+     */
+    static void bringToFront(Context context) {
+        Context appContext = context.getApplicationContext();
+        Intent intent = getLaunchIntent(appContext);
+        if (intent == null) return;
+
+        requestedAt = SystemClock.elapsedRealtime();
+
+        try {
+            appContext.startActivity(intent.addFlags(LAUNCH_FLAGS));
+        } catch (Exception e) {
+            android.util.Log.w("ForegroundLauncher", "Activity start failed", e);
+        }
+
+        // Background activity starts are silently dropped on Android 10+
+        if (!visible && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            postFullScreenIntent(appContext);
+        }
+    }
+
+    /**
+     * Called once an activity of the app is started.
+     */
+    private static void onVisible(Activity activity) {
+        visible = true;
+        if (requestedAt == 0) return;
+
+        cancelFullScreenIntent(activity.getApplicationContext());
+
+        Choreographer.getInstance().postFrameCallback(frameTimeNanos -> {
+            long start = requestedAt;
+            if (start == 0) return;
+
+            requestedAt = 0;
+            long latency = SystemClock.elapsedRealtime() - start;
+            // Shown by the user much later, not by the request
+            if (latency > REQUEST_TIMEOUT_MS) return;
+
+            lastLatencyMs = latency;
+            totalLatencyMs += lastLatencyMs;
+            launches++;
+            BackgroundMode.fireEvent("foreground", lastLatencyMs);
+        });
+    }
+
+    /**
+     * Called once the last activity of the app is stopped.
+     */
+    private static void onHidden() {
+        visible = false;
+    }
+
+    /**
+     * Latencies from the request to the first frame.
+     */
+    static JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("launches", launches);
+        stats.put("last", lastLatencyMs);
+        stats.put("mean", launches > 0 ? totalLatencyMs / launches : -1);
+        return stats;
+    }
+
+    /**
+     * Forget the launch component and the prebuilt intent, see
+     * MemoryGovernor. Both are rebuilt by the next launch.
+     */
+    static void dropCaches() {
+        launchComponent = null;
+        fullScreenIntent = null;
+    }
+
+    private static PendingIntent getFullScreenIntent(Context context) {
+        PendingIntent pending = fullScreenIntent;
+        if (pending != null) return pending;
+
+        Intent intent = getLaunchIntent(context);
+        if (intent == null) return null;
+
+        pending = PendingIntent.getActivity(context, NOTIFICATION_ID, intent.addFlags(LAUNCH_FLAGS),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        fullScreenIntent = pending;
+        return pending;
+    }
+
+    private static void postFullScreenIntent(Context context) {
+        PendingIntent pending = getFullScreenIntent(context);
+        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        if (pending == null || nm == null) return;
+
+        String channelId = NotificationChannels.ensureLaunchChannel(context, CHANNEL_ID);
+        int icon = context.getApplicationInfo().icon;
+
+        NotificationCompat.Builder builder =
+                new NotificationCompat.Builder(context, channelId)
+                        .setSmallIcon(icon != 0 ? icon : android.R.drawable.ic_dialog_info)
+                        .setContentTitle(context.getApplicationInfo().loadLabel(context.getPackageManager()))
+                        .setPriority(NotificationCompat.PRIORITY_HIGH)
+                        .setCategory(NotificationCompat.CATEGORY_REMINDER)
+                        .setAutoCancel(true)
+                        .setContentIntent(pending);
+
+        // Opt-in, the permission is not declared by the plugin
+        if (ContextCompat.checkSelfPermission(context, USE_FULL_SCREEN_INTENT)
+                == PackageManager.PERMISSION_GRANTED) {
+            builder.setFullScreenIntent(pending, true);
+        }
+
+        nm.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    private static void cancelFullScreenIntent(Context context) {
+        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        if (nm != null) nm.cancel(NOTIFICATION_ID);
+    }
+}
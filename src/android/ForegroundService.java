@@ -1,12 +1,15 @@
 package de.einfachhans.BackgroundMode;
 
 import android.app.Notification;
-import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
 import android.graphics.Color;
@@ -23,24 +26,27 @@ public class ForegroundService extends Service {
     public static final String ACTION_UPDATE = "ForegroundService.UPDATE";
     public static final String ACTION_RECOVER = "ForegroundService.RECOVER";
     public static final String ACTION_FOREGROUND = "ForegroundService.FOREGROUND";
+    public static final String ACTION_HEADLESS = "ForegroundService.HEADLESS";
+    public static final String ACTION_LOCATION = "ForegroundService.LOCATION";
     
-    private static final String CHANNEL_ID = "background_mode_channel";
-    private static final String CHANNEL_NAME = "Background Mode";
     private static final String NOTIFICATION_TITLE = "App is running in background";
     private static final String NOTIFICATION_TEXT = "Doing heavy tasks.";
     private static final String NOTIFICATION_ICON = "ic_launcher";
     
+    // Set if the service runs in its own android:process
+    private boolean separateProcess = false;
+
     private JSONObject lastSettings = null;
     private JSONObject getSettings() {
         if (lastSettings == null) {
-            lastSettings = BackgroundMode.getDefaultSettings();
+            lastSettings = getDefaultSettings();
         }
         return lastSettings;
     }
     
     private JSONObject getSettings(JSONObject newSettings) {
         if (newSettings == null) {
-            lastSettings = BackgroundMode.getDefaultSettings();
+            lastSettings = getDefaultSettings();
         }
         else {
             lastSettings = newSettings;
@@ -48,24 +54,251 @@ public class ForegroundService extends Service {
         return lastSettings;
     }
 
+    /**
+     * The plugin's settings, from the SharedState if the plugin lives in
+     * another process.
+     */
+    private JSONObject getDefaultSettings() {
+        SharedState state = separateProcess ? SharedState.get(this) : null;
+        return state != null ? state.getDefaultSettings() : BackgroundMode.getDefaultSettings();
+    }
+
+    private JSONObject getRuntimeSettings() {
+        SharedState state = separateProcess ? SharedState.get(this) : null;
+        return state != null ? state.getRuntimeSettings() : BackgroundMode.getRuntimeSettings();
+    }
+
+    /**
+     * If the manifest moved the service out of the application's process.
+     */
+    static boolean isSeparateProcess(Context context) {
+        try {
+            ServiceInfo info = context.getPackageManager().getServiceInfo(
+                    new ComponentName(context, ForegroundService.class), 0);
+            return !context.getApplicationInfo().processName.equals(info.processName);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     @Override
     public IBinder onBind (Intent intent) {
         // This is a started-only service, not bindable
         return null;
     }
 
+    // Rate limits the re-posting of dismissed notifications
+    private final RecoverController recoverController = new RecoverController(
+        new RecoverController.Listener() {
+            @Override
+            public void onRecover() {
+                startForegroundSafe(getSettings());
+            }
+
+            @Override
+            public void onEscalate(int dismissals) {
+                // Switch to the more prominent channel and let JS decide
+                escalated = true;
+                BackgroundMode.fireEvent("dismissed", dismissals);
+                reportChannelState();
+            }
+
+            @Override
+            public void onCalm() {
+                // Back to the configured channel
+                escalated = false;
+                updateNotification(getSettings());
+                reportChannelState();
+            }
+        });
+
+    // Set after repeated dismissals, see RecoverController
+    private static volatile boolean escalated = false;
+
+    // Records produced by native background work, see getRecordBuffer
+    private static volatile RecordBuffer recordBuffer;
+
+    /**
+     * Returns the buffer native background work can append records to.
+     * JS drains it in batches with drainRecords().
+     */
+    public static RecordBuffer getRecordBuffer() {
+        RecordBuffer buffer = recordBuffer;
+        if (buffer == null) {
+            synchronized (ForegroundService.class) {
+                if (recordBuffer == null) {
+                    recordBuffer = new RecordBuffer(RecordBuffer.DEFAULT_CAPACITY);
+                }
+                buffer = recordBuffer;
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Number of records waiting to be drained, without allocating the buffer.
+     */
+    static int getPendingRecordCount() {
+        RecordBuffer buffer = recordBuffer;
+        return buffer != null ? buffer.getRecordCount() : 0;
+    }
+
+    /**
+     * Release the storage of the record buffer if nothing waits to be
+     * drained, see MemoryGovernor. It is allocated again by the next record.
+     *
+     * @return The number of bytes released.
+     */
+    static int releaseRecordBuffer() {
+        RecordBuffer buffer = recordBuffer;
+        return buffer != null ? buffer.release() : 0;
+    }
+
+    // Number of dismissed notifications within this process
+    private static volatile int recoverCount = 0;
+
+    static int getRecoverCount() {
+        return recoverCount;
+    }
+
+    /**
+     * Returns true if the notification moved to the fallback channel.
+     */
+    static boolean isEscalated() {
+        return escalated;
+    }
+
+    // Flag indicates if the service is alive within this process
+    private static volatile boolean running = false;
+
+    /**
+     * Returns true if the service is created and not yet destroyed.
+     */
+    static boolean isRunning() {
+        return running;
+    }
+
+    // Tells JS to pause or resume network bound work
+    private final NetworkMonitor.Listener networkListener = (connected, metered) -> {
+        JSONObject state = new JSONObject();
+        try {
+            state.put("connected", connected);
+            state.put("metered", metered);
+        } catch (Exception ignored) {}
+        BackgroundMode.fireEvent("network", state);
+    };
+
+    // Reports WebView stalls to JS once it responds again
+    private final Heartbeat.Listener heartbeatListener = new Heartbeat.Listener() {
+        @Override
+        public void onStall(long silentMs) {
+            android.util.Log.w("ForegroundService", "WebView silent for " + silentMs + "ms");
+        }
+
+        @Override
+        public void onRecovered(long stalledMs) {
+            BackgroundMode.fireEvent("stall", stalledMs);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();        
+        running = true;
+        separateProcess = isSeparateProcess(this);
+        MemoryGovernor.install(this);
+        if (separateProcess) BackgroundMode.setEventRelay(this);
+        applyKeepAlive(getSettings());
         startForegroundSafe(getSettings());
+        markRunning(true);
+        Heartbeat.addListener(heartbeatListener);
+        Heartbeat.start(this);
+        TimerScheduler.start(this);
+        NetworkMonitor.addListener(this, networkListener);
+        ForegroundLauncher.prepare(this);
+        registerChannelReceiver();
+        reportChannelState();
     }
 
     @Override
     public void onDestroy() {
+        running = false;
+        markRunning(false);
+        BackgroundMode.setEventRelay(null);
+        escalated = false;
+        HeadlessRunner.stop();
+        TimerScheduler.stop();
+        LocationBatcher.stop();
+        SilentAudio.stop();
+        KeepAliveStats.setAudio(false);
+        NetworkMonitor.removeListener(this, networkListener);
+        Heartbeat.stop();
+        Heartbeat.removeListener(heartbeatListener);
+        unregisterChannelReceiver();
+        recoverController.cancel();
         stopForeground(true);
         super.onDestroy();
     }
 
+    /**
+     * Tell other processes if the service runs, see SharedState.
+     */
+    private void markRunning(boolean isRunning) {
+        SharedState state = SharedState.get(this);
+        if (state != null) state.setRunning(isRunning);
+    }
+
+    /**
+     * Tell the plugin's process if the silent audio plays, it decides on
+     * the visibility keep-alive by it. Cleared by markRunning.
+     */
+    private void publishAudio(boolean playing) {
+        SharedState state = SharedState.get(this);
+        if (state != null) state.setAudio(playing);
+    }
+
+    // Listens for the user (un)blocking the app or the channel
+    private BroadcastReceiver channelReceiver;
+
+    private void registerChannelReceiver() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) return;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(NotificationManager.ACTION_APP_BLOCK_STATE_CHANGED);
+        filter.addAction(NotificationManager.ACTION_NOTIFICATION_CHANNEL_BLOCK_STATE_CHANGED);
+        filter.addAction(NotificationManager.ACTION_NOTIFICATION_CHANNEL_GROUP_BLOCK_STATE_CHANGED);
+
+        channelReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                NotificationChannels.invalidate();
+                reportChannelState();
+            }
+        };
+        registerReceiver(channelReceiver, filter);
+    }
+
+    private void unregisterChannelReceiver() {
+        if (channelReceiver == null) return;
+
+        try {
+            unregisterReceiver(channelReceiver);
+        } catch (Exception ignored) {}
+        channelReceiver = null;
+    }
+
+    /**
+     * Tell JS about the channel state. A blocked channel hides the
+     * notification, which silently breaks the foreground posture.
+     */
+    private void reportChannelState() {
+        JSONObject state = NotificationChannels.getState(this, getChannelSettings(getSettings()));
+        if (state.optBoolean("blocked")) {
+            android.util.Log.w("ForegroundService", "Notification channel is blocked: " + state);
+        }
+        BackgroundMode.fireEvent("channel", state);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null) {
@@ -73,12 +306,30 @@ public class ForegroundService extends Service {
             
             if (ACTION_UPDATE.equals(action)) {
                 try {
-                    JSONObject newSettings = new JSONObject(intent.getStringExtra("settings"));
+                    JSONObject newSettings = getRuntimeSettings();
                     updateNotification(getSettings(newSettings));
+                    if (newSettings != null && newSettings.has("channel")) reportChannelState();
+                    if (applyKeepAlive(getSettings())
+                            && isTypeDeclared(this, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK)) {
+                        startForegroundSafe(getSettings());
+                    }
                 } catch (Exception ignored) {}
             }
             else if (ACTION_RECOVER.equals(action)) {
-                startForegroundSafe(getSettings());
+                recoverCount++;
+                recoverController.onDismissed();
+            }
+            else if (ACTION_HEADLESS.equals(action) && !separateProcess) {
+                // The activity is gone, continue with the background script
+                HeadlessRunner.start(this);
+            }
+            else if (ACTION_LOCATION.equals(action)) {
+                // Location updates started or stopped, adjust the service type
+                try {
+                    startForegroundSafe(getSettings());
+                } catch (Exception e) {
+                    android.util.Log.w("ForegroundService", "Cannot change the service type", e);
+                }
             }
             else if (ACTION_FOREGROUND.equals(action)) {
                 // Move app to foreground
@@ -88,46 +339,103 @@ public class ForegroundService extends Service {
                 );
             }
         }
+        // Restarted by the system after the process died. A WebView in
+        // a second process would share the data directory with the app's
+        // one, see BackgroundMode's headless action.
+        else if (!separateProcess && HeadlessRunner.isEnabled(this)) {
+            HeadlessRunner.start(this);
+        }
         // allows recovery if system kills service, ignored if user stopped
         return START_STICKY;
     }
 
-    private void ensureNotificationChannel() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+    private void startForegroundSafe(JSONObject settings) {
+        boolean traced = Tracing.begin("ForegroundService.startForeground");
+        try {
+            startForegroundTyped(makeNotification(settings));
+        } finally {
+            Tracing.end(traced);
+        }
+    }
 
-        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        if (nm == null) return;
+    // Set while the silent audio keeps the app alive, see applyKeepAlive
+    private boolean audioKeepAlive = false;
 
-        NotificationChannel channel = nm.getNotificationChannel(CHANNEL_ID);
-        if (channel == null) {
-            channel = new NotificationChannel(
-                    CHANNEL_ID,
-                    CHANNEL_NAME,
-                    NotificationManager.IMPORTANCE_LOW
-            );
-            channel.setShowBadge(false);
-            channel.setSound(null, null);
-            channel.enableVibration(false);
-            nm.createNotificationChannel(channel);
+    /**
+     * Start or stop the silent audio as the keepAlive option asks, either
+     * "audio", "visibility" of the WebView, see BackgroundModeExt, or
+     * "auto" as recommended by the device's vendor profile.
+     *
+     * @return true if the audio started or stopped.
+     */
+    private boolean applyKeepAlive(JSONObject settings) {
+        String strategy = settings != null ? settings.optString("keepAlive") : "";
+        if ("auto".equals(strategy)) {
+            strategy = "mediaPlayback".equals(VendorProfiles.get(this).serviceType)
+                    ? KeepAliveStats.AUDIO : KeepAliveStats.VISIBILITY;
         }
+        boolean audio = KeepAliveStats.AUDIO.equals(strategy);
+        if (audio == audioKeepAlive) return false;
+
+        if (audio) {
+            audioKeepAlive = SilentAudio.start(this);
+        } else {
+            SilentAudio.stop();
+            audioKeepAlive = false;
+        }
+        KeepAliveStats.setAudio(audioKeepAlive);
+        publishAudio(audioKeepAlive);
+        return true;
     }
 
-    private void startForegroundSafe(JSONObject settings) {
-        ensureNotificationChannel();
-        
-        Notification notification = makeNotification(settings);
+    /**
+     * The types claimed on demand, if the app declared them for the
+     * service. Without the location type the updates stop once the app is
+     * hidden, unless the background location permission is granted.
+     * The batcher is only started within the service's process.
+     */
+    private int getOptionalTypes() {
+        int types = 0;
+        if (LocationBatcher.isActive()
+                && isTypeDeclared(this, ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION)) {
+            types |= ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION;
+        }
+        if (audioKeepAlive
+                && isTypeDeclared(this, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK)) {
+            types |= ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK;
+        }
+        return types;
+    }
+
+    /**
+     * If the manifest declares the foreground service type for the service.
+     */
+    static boolean isTypeDeclared(Context context, int type) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return true;
+
+        try {
+            ServiceInfo info = context.getPackageManager().getServiceInfo(
+                    new ComponentName(context, ForegroundService.class), 0);
+            return (info.getForegroundServiceType() & type) != 0;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void startForegroundTyped(Notification notification) {
         // Android 12+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             int fgsTypes =
                     ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC |
-                    ServiceInfo.FOREGROUND_SERVICE_TYPE_REMOTE_MESSAGING;
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_REMOTE_MESSAGING |
+                    getOptionalTypes();
             startForeground(NOTIFICATION_ID, notification, fgsTypes);
         // Android 10+
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             startForeground(
                     NOTIFICATION_ID,
                     notification,
-                    ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC | getOptionalTypes()
             );
         // Older than Android 10
         } else {
@@ -142,11 +450,30 @@ public class ForegroundService extends Service {
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         if (nm == null) return;
         
-        nm.notify(NOTIFICATION_ID, makeNotification(settings));
+        boolean traced = Tracing.begin("ForegroundService.updateNotification");
+        try {
+            nm.notify(NOTIFICATION_ID, makeNotification(settings));
+        } finally {
+            Tracing.end(traced);
+        }
     }
 
     private Notification makeNotification(JSONObject settings) {
-        Context context = getApplicationContext();
+        boolean traced = Tracing.begin("ForegroundService.makeNotification");
+        try {
+            return buildNotification(getApplicationContext(), settings);
+        } finally {
+            Tracing.end(traced);
+        }
+    }
+
+    /**
+     * Build the notification of the background mode, also used by the
+     * BackgroundWorker while the service is not allowed to start.
+     */
+    static Notification buildNotification(Context context, JSONObject settings) {
+        settings = getChannelSettings(settings);
+        String channelId = NotificationChannels.ensure(context, settings);
 
         String title = settings.optString("title", NOTIFICATION_TITLE);
         String text = settings.optString("text", NOTIFICATION_TEXT);
@@ -155,7 +482,7 @@ public class ForegroundService extends Service {
         boolean resume = settings.optBoolean("resume", true);
 
         NotificationCompat.Builder builder =
-                new NotificationCompat.Builder(context, CHANNEL_ID)
+                new NotificationCompat.Builder(context, channelId)
                         .setContentTitle(title)
                         .setContentText(text)
                         .setOngoing(true)
@@ -177,8 +504,7 @@ public class ForegroundService extends Service {
         }
 
         if (resume) {
-            Intent intent = context.getPackageManager()
-                    .getLaunchIntentForPackage(context.getPackageName());
+            Intent intent = ForegroundLauncher.getLaunchIntent(context);
 
             if (intent != null) {
                 intent.addFlags(
@@ -212,7 +538,14 @@ public class ForegroundService extends Service {
         return builder.build();
     }
 
-    private void setColor(NotificationCompat.Builder builder, JSONObject settings) {
+    /**
+     * The settings with the channel the notification is posted to.
+     */
+    private static JSONObject getChannelSettings(JSONObject settings) {
+        return escalated ? NotificationChannels.withFallback(settings) : settings;
+    }
+
+    private static void setColor(NotificationCompat.Builder builder, JSONObject settings) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
 
         String hex = settings.optString("color", null);
@@ -224,7 +557,7 @@ public class ForegroundService extends Service {
         } catch (Exception ignored) {}
     }
 
-    private int getIconResId(Context context, String iconName) {
+    private static int getIconResId(Context context, String iconName) {
         Resources res = context.getResources();
         String pkgName = context.getPackageName();
 
@@ -238,7 +571,7 @@ public class ForegroundService extends Service {
         return iconId;
     }
 
-    private int findIconResourceId(Resources res, String pkgName, String iconName) {
+    private static int findIconResourceId(Resources res, String pkgName, String iconName) {
         if (iconName == null || iconName.isEmpty()) return 0;
 
         int resId = res.getIdentifier(iconName, "mipmap", pkgName);
@@ -0,0 +1,144 @@
+package de.einfachhans.BackgroundMode;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.webkit.JavascriptInterface;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs a registered background script in a headless WebView owned by the
+ * foreground service, once the activity and its Cordova WebView are gone.
+ *
+ * The script is a file below www/ and is persisted, so it is also started
+ * when the system restarts the sticky service. The script can use:
+ *
+ *   BackgroundModeHeadless.post(string)  append a record, see drainRecords
+ *   BackgroundModeHeadless.log(string)   write to logcat
+ *
+ * The headless WebView is destroyed as soon as the activity comes back.
+ */
+final class HeadlessRunner {
+
+    private static final String PREFS = "BackgroundMode";
+    private static final String KEY_SCRIPT = "headlessScript";
+
+    private static final String INTERFACE_NAME = "BackgroundModeHeadless";
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private static WebView webView;
+
+    private HeadlessRunner() {}
+
+    /**
+     * Persist the script to run, null to disable the headless mode.
+     *
+     * @param script Path relative to www/, e.g. "js/background.js".
+     */
+    static void setScript(Context context, String script) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        if (script == null || script.isEmpty()) {
+            editor.remove(KEY_SCRIPT);
+        } else {
+            editor.putString(KEY_SCRIPT, script);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the registered script, null if the headless mode is disabled.
+     */
+    static String getScript(Context context) {
+        return getPrefs(context).getString(KEY_SCRIPT, null);
+    }
+
+    static boolean isEnabled(Context context) {
+        return getScript(context) != null;
+    }
+
+    static boolean isRunning() {
+        return webView != null;
+    }
+
+    /**
+     * Start the registered script, if any and not yet running.
+     */
+    static void start(Context context) {
+        Context appContext = context.getApplicationContext();
+        handler.post(() -> startOnMain(appContext));
+    }
+
+    /**
+     * Destroy the headless WebView.
+     */
+    static void stop() {
+        handler.post(HeadlessRunner::stopOnMain);
+    }
+
+    @SuppressLint({ "SetJavaScriptEnabled", "AddJavascriptInterface" })
+    private static void startOnMain(Context context) {
+        String script = getScript(context);
+        if (webView != null || script == null) return;
+
+        try {
+            WebView view = new WebView(context);
+            WebSettings settings = view.getSettings();
+            settings.setJavaScriptEnabled(true);
+            settings.setAllowFileAccess(true);
+
+            view.addJavascriptInterface(new Bridge(), INTERFACE_NAME);
+            // The path is set by the app, escape it for the attribute
+            view.loadDataWithBaseURL(
+                    "file:///android_asset/www/",
+                    "<!DOCTYPE html><html><head><script src=\"" + TextUtils.htmlEncode(script)
+                            + "\"></script></head></html>",
+                    "text/html", "UTF-8", null);
+
+            // Not attached to a window, keep the timers running anyway
+            view.onResume();
+            view.resumeTimers();
+
+            webView = view;
+            android.util.Log.d("HeadlessRunner", "Started " + script);
+        } catch (Exception e) {
+            android.util.Log.e("HeadlessRunner", "Cannot start headless WebView", e);
+        }
+    }
+
+    private static void stopOnMain() {
+        if (webView == null) return;
+
+        try {
+            webView.removeJavascriptInterface(INTERFACE_NAME);
+            webView.destroy();
+        } catch (Exception ignored) {}
+        webView = null;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Methods exposed to the background script.
+     */
+    private static final class Bridge {
+        @JavascriptInterface
+        public boolean post(String record) {
+            if (record == null) return false;
+            return ForegroundService.getRecordBuffer().put(record.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @JavascriptInterface
+        public void log(String message) {
+            android.util.Log.i("HeadlessRunner", String.valueOf(message));
+        }
+    }
+}
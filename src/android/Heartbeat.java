@@ -0,0 +1,163 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watchdog for the JS runtime while the foreground service is running.
+ *
+ * The JS layer pings periodically through the plugin, the watchdog
+ * (started by the service) checks the time since the last ping and
+ * notifies the listeners once the WebView is silent beyond the threshold
+ * and again when it responds after a stall.
+ *
+ * The pings are also written to the SharedState, so the watchdog works
+ * when the service runs in its own process.
+ */
+final class Heartbeat {
+
+    interface Listener {
+        /**
+         * The WebView did not ping within the threshold.
+         *
+         * @param silentMs Time since the last ping.
+         */
+        void onStall(long silentMs);
+
+        /**
+         * The WebView pinged again after a stall.
+         *
+         * @param stalledMs Time between the last two pings.
+         */
+        void onRecovered(long stalledMs);
+    }
+
+    private static final long DEFAULT_THRESHOLD_MS = 150 * 1000;
+    private static final long MIN_THRESHOLD_MS = 5 * 1000;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private static volatile long lastBeatAt = 0;
+    private static volatile long thresholdMs = DEFAULT_THRESHOLD_MS;
+    private static volatile boolean stalled = false;
+    private static volatile boolean running = false;
+
+    private static volatile int stallCount = 0;
+    private static volatile long stalledTotalMs = 0;
+
+    // Pings of other processes, null until start or the first ping
+    private static volatile SharedState sharedState;
+
+    private Heartbeat() {}
+
+    private static final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+
+            // Pinged in the UI process while the service runs in its own
+            SharedState state = sharedState;
+            if (state != null) {
+                long shared = state.getLastHeartbeat();
+                if (shared > lastBeatAt) onBeat(shared, state.getHeartbeatThreshold());
+            }
+
+            long silent = SystemClock.elapsedRealtime() - lastBeatAt;
+            if (lastBeatAt > 0 && !stalled && silent > thresholdMs) {
+                stalled = true;
+                stallCount++;
+                for (Listener l : listeners) l.onStall(silent);
+            }
+            handler.postDelayed(this, thresholdMs / 2);
+        }
+    };
+
+    /**
+     * Record a ping of the JS runtime. Cheap, safe from any thread.
+     *
+     * @param context   Any context, to share the ping with other processes.
+     * @param threshold Silence in ms after which the WebView is stalled,
+     *                  0 to keep the current value.
+     */
+    static void beat(Context context, long threshold) {
+        SharedState state = sharedState;
+        if (state == null) {
+            state = sharedState = SharedState.get(context);
+        }
+        if (state != null) state.setHeartbeat(threshold);
+
+        onBeat(SystemClock.elapsedRealtime(), threshold);
+    }
+
+    private static synchronized void onBeat(long now, long threshold) {
+        long previous = lastBeatAt;
+
+        if (threshold > 0) {
+            thresholdMs = Math.max(threshold, MIN_THRESHOLD_MS);
+        }
+        lastBeatAt = now;
+
+        if (stalled) {
+            stalled = false;
+            long stalledMs = now - previous;
+            stalledTotalMs += stalledMs;
+            handler.post(() -> {
+                for (Listener l : listeners) l.onRecovered(stalledMs);
+            });
+        }
+    }
+
+    /**
+     * Start watching, called when the service is created.
+     */
+    static void start(Context context) {
+        if (running) return;
+
+        if (sharedState == null) sharedState = SharedState.get(context);
+
+        running = true;
+        stalled = false;
+        handler.postDelayed(watchdog, thresholdMs / 2);
+    }
+
+    /**
+     * Stop watching, called when the service is destroyed.
+     */
+    static void stop() {
+        running = false;
+        handler.removeCallbacks(watchdog);
+    }
+
+    static void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Time in ms since the last ping, -1 if there was none yet.
+     */
+    static long getSilentMs() {
+        long last = lastBeatAt;
+        return last > 0 ? SystemClock.elapsedRealtime() - last : -1;
+    }
+
+    static boolean isStalled() {
+        return stalled;
+    }
+
+    static int getStallCount() {
+        return stallCount;
+    }
+
+    static long getStalledTotalMs() {
+        return stalledTotalMs;
+    }
+}
@@ -0,0 +1,126 @@
+package de.einfachhans.BackgroundMode;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CPU time the process spends in background per keep-alive strategy, so
+ * the strategies can be compared on a device:
+ *
+ *   audio       the silent audio plays, see SilentAudio
+ *   visibility  the WebView is forced visible, see BackgroundModeExt
+ *   none        neither runs
+ *
+ * Only the plugin's process is measured. Audio is mixed by the system's
+ * audio server, whose cost is not included. With the service in its own
+ * android:process, the audio state is read from the SharedState and the
+ * underruns are -1, they are only known to the service's process.
+ */
+final class KeepAliveStats {
+
+    static final String AUDIO = "audio";
+    static final String VISIBILITY = "visibility";
+    static final String NONE = "none";
+
+    // Per strategy: elapsed ms, cpu ms, keep-alive cycles
+    private static final Map<String, long[]> totals = new HashMap<>();
+
+    private static boolean audio = false;
+    private static boolean visibility = false;
+    private static boolean background = false;
+
+    // Strategy of the open segment, null while in foreground
+    private static String current;
+    private static long segmentStart;
+    private static long segmentCpu;
+
+    private KeepAliveStats() {}
+
+    static synchronized void setAudio(boolean on) {
+        audio = on;
+        update();
+    }
+
+    static synchronized void setVisibility(boolean on) {
+        visibility = on;
+        update();
+    }
+
+    static synchronized void setBackground(boolean on) {
+        background = on;
+        update();
+    }
+
+    /**
+     * Count a wakeup of the strategy, e.g. a visibility keep-alive cycle.
+     */
+    static synchronized void onCycle() {
+        if (current != null) getTotals(current)[2]++;
+    }
+
+    static synchronized JSONObject getStats() throws JSONException {
+        // Account the open segment without closing it
+        String open = current;
+        closeSegment();
+        openSegment(open);
+
+        JSONObject stats = new JSONObject();
+        stats.put("current", open != null ? open : JSONObject.NULL);
+
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] t = entry.getValue();
+            JSONObject strategy = new JSONObject();
+            strategy.put("time", t[0]);
+            strategy.put("cpu", t[1]);
+            strategy.put("cpuPerMinute", t[0] > 0 ? t[1] * 60000.0 / t[0] : 0);
+            strategy.put("cycles", t[2]);
+            stats.put(entry.getKey(), strategy);
+        }
+
+        JSONObject audioStats = stats.optJSONObject(AUDIO);
+        if (audioStats != null) audioStats.put("underruns", SilentAudio.getUnderruns());
+
+        return stats;
+    }
+
+    private static void update() {
+        String next = null;
+        if (background) {
+            next = audio ? AUDIO : visibility ? VISIBILITY : NONE;
+        }
+        if (next == null ? current == null : next.equals(current)) return;
+
+        closeSegment();
+        openSegment(next);
+    }
+
+    private static void openSegment(String strategy) {
+        current = strategy;
+        segmentStart = SystemClock.elapsedRealtime();
+        segmentCpu = Process.getElapsedCpuTime();
+    }
+
+    private static void closeSegment() {
+        if (current == null) return;
+
+        long[] t = getTotals(current);
+        t[0] += SystemClock.elapsedRealtime() - segmentStart;
+        t[1] += Process.getElapsedCpuTime() - segmentCpu;
+        current = null;
+    }
+
+    private static long[] getTotals(String strategy) {
+        long[] t = totals.get(strategy);
+        if (t == null) {
+            t = new long[3];
+            totals.put(strategy, t);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,140 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * What happens to the foreground service when the activity is destroyed,
+ * and how much a warm resume saves compared to a cold start.
+ *
+ * Policies:
+ *
+ *   stop    stop the service, kill the process before Android 8 (default)
+ *   keep    keep the service and the warm process
+ *   detach  keep the service and hide the task from the recents
+ *   kill    stop the service and kill the process
+ *
+ * The startup cost is measured from the process start (cold) or from the
+ * creation of the new activity (warm) until the plugin is initialized.
+ */
+final class LifecyclePolicy {
+
+    static final String STOP = "stop";
+    static final String KEEP = "keep";
+    static final String DETACH = "detach";
+    static final String KILL = "kill";
+
+    private static final String PREFS = "BackgroundMode";
+    private static final String KEY_POLICY = "destroyPolicy";
+    private static final String KEY_COLD_START = "coldStartMs";
+
+    // Set when the activity got destroyed while the process stays alive
+    private static volatile boolean destroyed = false;
+    private static volatile long activityCreatedAt = 0;
+
+    private static volatile long lastStartMs = -1;
+    private static volatile boolean lastStartWarm = false;
+    private static volatile int warmResumes = 0;
+    private static volatile long savedTotalMs = 0;
+
+    private static Application.ActivityLifecycleCallbacks lifecycleCallbacks;
+
+    private LifecyclePolicy() {}
+
+    static void set(Context context, String policy) {
+        getPrefs(context).edit().putString(KEY_POLICY, policy).apply();
+    }
+
+    static String get(Context context) {
+        return getPrefs(context).getString(KEY_POLICY, STOP);
+    }
+
+    /**
+     * If the service shall survive the activity.
+     */
+    static boolean keepsService(String policy) {
+        return KEEP.equals(policy) || DETACH.equals(policy);
+    }
+
+    /**
+     * Called when the activity is destroyed and the process stays alive.
+     * Waits for the next activity to measure the warm resume.
+     */
+    static synchronized void onActivityDestroyed(Activity activity) {
+        destroyed = true;
+        activityCreatedAt = 0;
+
+        if (lifecycleCallbacks != null) return;
+
+        Application app = activity.getApplication();
+        lifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity a, Bundle state) {
+                if (activityCreatedAt == 0) activityCreatedAt = SystemClock.elapsedRealtime();
+            }
+            @Override public void onActivityStarted(Activity a) { }
+            @Override public void onActivityResumed(Activity a) { }
+            @Override public void onActivityPaused(Activity a) { }
+            @Override public void onActivityStopped(Activity a) { }
+            @Override public void onActivitySaveInstanceState(Activity a, Bundle state) { }
+            @Override public void onActivityDestroyed(Activity a) { }
+        };
+        app.registerActivityLifecycleCallbacks(lifecycleCallbacks);
+    }
+
+    /**
+     * Called when the plugin is initialized, records the startup cost.
+     */
+    static synchronized void onPluginInitialized(Activity activity) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (lifecycleCallbacks != null) {
+            activity.getApplication().unregisterActivityLifecycleCallbacks(lifecycleCallbacks);
+            lifecycleCallbacks = null;
+        }
+
+        SharedPreferences prefs = getPrefs(activity);
+        long coldStart = prefs.getLong(KEY_COLD_START, -1);
+
+        if (destroyed && activityCreatedAt > 0) {
+            lastStartMs = now - activityCreatedAt;
+            lastStartWarm = true;
+            warmResumes++;
+            if (coldStart > lastStartMs) savedTotalMs += coldStart - lastStartMs;
+        }
+        else if (!destroyed && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            lastStartMs = now - Process.getStartElapsedRealtime();
+            lastStartWarm = false;
+            // Smooth the baseline, single cold starts vary a lot
+            long baseline = coldStart < 0 ? lastStartMs : (coldStart * 3 + lastStartMs) / 4;
+            prefs.edit().putLong(KEY_COLD_START, baseline).apply();
+        }
+
+        destroyed = false;
+        activityCreatedAt = 0;
+    }
+
+    static JSONObject getStats(Context context) throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("policy", get(context));
+        stats.put("coldStart", getPrefs(context).getLong(KEY_COLD_START, -1));
+        stats.put("lastStart", lastStartMs);
+        stats.put("lastStartWarm", lastStartWarm);
+        stats.put("warmResumes", warmResumes);
+        stats.put("saved", savedTotalMs);
+        return stats;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+}
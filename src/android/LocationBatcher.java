@@ -0,0 +1,272 @@
+package de.einfachhans.BackgroundMode;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.core.location.LocationListenerCompat;
+import androidx.core.location.LocationManagerCompat;
+import androidx.core.location.LocationRequestCompat;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batched location updates while the foreground service runs.
+ *
+ * The location provider is asked to batch the fixes up to maxDelay, which
+ * lets the GPS chip collect them without waking the application processor
+ * on devices supporting it. The fixes are filtered by accuracy and distance
+ * natively and handed to JS in one batch per maxDelay, so neither the
+ * WebView nor the JS engine is woken per fix.
+ *
+ * Options:
+ *
+ *   interval     ms between fixes, default 60 s
+ *   maxDelay     ms a fix may be held back for batching, default 10 min
+ *   minDistance  m to the last delivered fix, default 0
+ *   maxAccuracy  m, less accurate fixes are dropped, default any
+ *   priority     "high", "balanced" (default) or "low"
+ */
+final class LocationBatcher {
+
+    private static final long DEFAULT_INTERVAL_MS = 60 * 1000;
+    private static final long DEFAULT_MAX_DELAY_MS = 10 * 60 * 1000;
+
+    private static LocationBatcher instance;
+
+    private final Context context;
+    private final CallbackContext callback;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final LocationListenerCompat listener;
+    private final Runnable flushRunnable = this::flush;
+
+    private final long maxDelay;
+    private final float minDistance;
+    private final float maxAccuracy;
+
+    private final List<Location> pending = new ArrayList<>();
+    private Location lastAccepted;
+    private long firstPendingAt = 0;
+
+    private int wakeups = 0;
+    private int received = 0;
+    private int accepted = 0;
+    private int batches = 0;
+
+    private LocationBatcher(Context context, JSONObject options, CallbackContext callback) {
+        this.context = context.getApplicationContext();
+        this.callback = callback;
+
+        long interval = Math.max(1000, options.optLong("interval", DEFAULT_INTERVAL_MS));
+        maxDelay = Math.max(interval, options.optLong("maxDelay", DEFAULT_MAX_DELAY_MS));
+        minDistance = (float) Math.max(0, options.optDouble("minDistance", 0));
+        maxAccuracy = (float) Math.max(0, options.optDouble("maxAccuracy", 0));
+
+        thread = new HandlerThread("BackgroundModeLocation");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        listener = new LocationListenerCompat() {
+            @Override
+            public void onLocationChanged(@NonNull Location location) {
+                wakeups++;
+                accept(location);
+                flushIfDue();
+            }
+
+            @Override
+            public void onLocationChanged(@NonNull List<Location> locations) {
+                wakeups++;
+                for (Location location : locations) accept(location);
+                flushIfDue();
+            }
+        };
+
+        try {
+            request(interval, getQuality(options.optString("priority")));
+        } catch (RuntimeException e) {
+            // No provider or permission, nothing was posted to the thread yet
+            thread.quit();
+            throw e;
+        }
+    }
+
+    /**
+     * Start the updates, replacing running updates. Only within the
+     * service's process, which claims the location type while active.
+     *
+     * @throws SecurityException if the location permission is missing.
+     * @throws IllegalArgumentException if no location provider exists.
+     */
+    static synchronized void start(Context context, JSONObject options, CallbackContext callback) {
+        if (!hasPermission(context)) {
+            throw new SecurityException("Location permission required.");
+        }
+        stop();
+        instance = new LocationBatcher(context, options, callback);
+    }
+
+    /**
+     * Stop the updates and deliver the pending fixes, called by JS or
+     * when the service is destroyed.
+     */
+    static synchronized void stop() {
+        if (instance == null) return;
+
+        LocationBatcher batcher = instance;
+        instance = null;
+        batcher.handler.post(batcher::shutdown);
+    }
+
+    static synchronized boolean isActive() {
+        return instance != null;
+    }
+
+    /**
+     * Deliver the pending fixes now.
+     */
+    static synchronized void flushNow() {
+        if (instance != null) instance.handler.post(instance.flushRunnable);
+    }
+
+    static synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        LocationBatcher batcher = instance;
+        stats.put("active", batcher != null);
+        if (batcher == null) return stats;
+
+        stats.put("wakeups", batcher.wakeups);
+        stats.put("received", batcher.received);
+        stats.put("accepted", batcher.accepted);
+        stats.put("batches", batcher.batches);
+        return stats;
+    }
+
+    private static boolean hasPermission(Context context) {
+        return ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION)
+                    == PackageManager.PERMISSION_GRANTED
+                || ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION)
+                    == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private static int getQuality(String priority) {
+        switch (priority) {
+            case "high":
+                return LocationRequestCompat.QUALITY_HIGH_ACCURACY;
+            case "low":
+                return LocationRequestCompat.QUALITY_LOW_POWER;
+            default:
+                return LocationRequestCompat.QUALITY_BALANCED_POWER_ACCURACY;
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void request(long interval, int quality) {
+        LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        if (lm == null) throw new IllegalStateException("No location service.");
+
+        LocationRequestCompat request = new LocationRequestCompat.Builder(interval)
+                .setQuality(quality)
+                .setMaxUpdateDelayMillis(maxDelay)
+                .setMinUpdateDistanceMeters(minDistance)
+                .build();
+
+        LocationManagerCompat.requestLocationUpdates(lm, getProvider(lm, quality), request,
+                handler::post, listener);
+    }
+
+    /**
+     * The fused provider from Android 12, else GPS or the network.
+     */
+    private static String getProvider(LocationManager lm, int quality) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && lm.hasProvider(LocationManager.FUSED_PROVIDER)) {
+            return LocationManager.FUSED_PROVIDER;
+        }
+        if (quality == LocationRequestCompat.QUALITY_HIGH_ACCURACY
+                || !lm.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+            return LocationManager.GPS_PROVIDER;
+        }
+        return LocationManager.NETWORK_PROVIDER;
+    }
+
+    private void accept(Location location) {
+        received++;
+
+        if (maxAccuracy > 0 && (!location.hasAccuracy() || location.getAccuracy() > maxAccuracy)) return;
+        if (minDistance > 0 && lastAccepted != null && location.distanceTo(lastAccepted) < minDistance) return;
+
+        lastAccepted = location;
+        accepted++;
+
+        if (pending.isEmpty()) {
+            firstPendingAt = SystemClock.elapsedRealtime();
+            // Without platform batching no fix might come to trigger the flush
+            handler.postDelayed(flushRunnable, maxDelay);
+        }
+        pending.add(location);
+    }
+
+    private void flushIfDue() {
+        if (!pending.isEmpty() && SystemClock.elapsedRealtime() - firstPendingAt >= maxDelay) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        handler.removeCallbacks(flushRunnable);
+        if (pending.isEmpty()) return;
+
+        JSONArray batch = new JSONArray();
+        for (Location location : pending) {
+            batch.put(toJSON(location));
+        }
+        pending.clear();
+        batches++;
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, batch);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+
+    private static JSONObject toJSON(Location location) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("latitude", location.getLatitude());
+            json.put("longitude", location.getLongitude());
+            json.put("time", location.getTime());
+            if (location.hasAccuracy()) json.put("accuracy", location.getAccuracy());
+            if (location.hasAltitude()) json.put("altitude", location.getAltitude());
+            if (location.hasSpeed()) json.put("speed", location.getSpeed());
+            if (location.hasBearing()) json.put("bearing", location.getBearing());
+        } catch (JSONException ignored) {}
+        return json;
+    }
+
+    private void shutdown() {
+        LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        if (lm != null) {
+            LocationManagerCompat.removeUpdates(lm, listener);
+        }
+        flush();
+        // Release the callback, JS learns about a disabled mode by its event
+        callback.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+        thread.quitSafely();
+    }
+}
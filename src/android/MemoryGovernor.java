@@ -0,0 +1,98 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reacts to memory pressure, so the process gives memory back instead of
+ * being killed and cold started again.
+ *
+ * Moderate levels drop the caches that are cheap to rebuild, critical
+ * levels also release the prebuilt launch intents and the unused record
+ * buffer. Each trim is reported to JS with the "trim" event, so the app
+ * can release its own heap. Registered once per process, which covers the
+ * service when it runs in its own process.
+ */
+final class MemoryGovernor implements ComponentCallbacks2 {
+
+    private static MemoryGovernor instance;
+
+    private static volatile int trims = 0;
+    private static volatile int criticalTrims = 0;
+    private static volatile int lastLevel = -1;
+    private static volatile long lastTrimAt = 0;
+    private static volatile long releasedBytes = 0;
+
+    private MemoryGovernor() {}
+
+    /**
+     * Start listening, subsequent calls have no effect.
+     */
+    static synchronized void install(Context context) {
+        if (instance != null) return;
+
+        instance = new MemoryGovernor();
+        context.getApplicationContext().registerComponentCallbacks(instance);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Only tells that the UI got hidden, not a sign of pressure
+        if (level == TRIM_MEMORY_UI_HIDDEN) return;
+
+        boolean critical = isCritical(level);
+
+        NotificationChannels.invalidate();
+        BackgroundModeExt.dropCaches();
+        SharedState.dropCaches();
+
+        if (critical) {
+            ForegroundLauncher.dropCaches();
+            releasedBytes += ForegroundService.releaseRecordBuffer();
+            criticalTrims++;
+        }
+
+        trims++;
+        lastLevel = level;
+        lastTrimAt = SystemClock.elapsedRealtime();
+
+        JSONObject data = new JSONObject();
+        try {
+            data.put("level", level);
+            data.put("critical", critical);
+        } catch (JSONException ignored) {}
+        BackgroundMode.fireEvent("trim", data);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration config) { }
+
+    private static boolean isCritical(int level) {
+        return level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= TRIM_MEMORY_MODERATE;
+    }
+
+    /**
+     * Trims so far, for diagnostics.
+     */
+    static JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("trims", trims);
+        stats.put("critical", criticalTrims);
+        stats.put("lastLevel", lastLevel);
+        stats.put("lastTrim", lastTrimAt > 0 ? SystemClock.elapsedRealtime() - lastTrimAt : -1);
+        stats.put("released", releasedBytes);
+        return stats;
+    }
+}
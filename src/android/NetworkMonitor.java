@@ -0,0 +1,145 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tracks the default network through a ConnectivityManager callback.
+ *
+ * The callback is only registered while there are listeners, the
+ * current state can then be read without a binder call. Without
+ * listeners the state is stale, call refresh first.
+ */
+final class NetworkMonitor {
+
+    interface Listener {
+        /**
+         * The connectivity or the metered state changed.
+         */
+        void onNetworkChanged(boolean connected, boolean metered);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private static ConnectivityManager.NetworkCallback callback;
+
+    private static volatile boolean connected = false;
+    private static volatile boolean metered = true;
+
+    private NetworkMonitor() {}
+
+    /**
+     * Register the listener, starts monitoring with the first listener.
+     */
+    static synchronized void addListener(Context context, Listener listener) {
+        if (!listeners.addIfAbsent(listener) || callback != null) return;
+
+        ConnectivityManager cm = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) return;
+
+        // The callback delivers the initial state asynchronously
+        read(cm);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            callback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+                    update(caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+                            !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    update(false, true);
+                }
+            };
+            cm.registerDefaultNetworkCallback(callback);
+        } else {
+            // Reports every network with internet, not just the default one
+            callback = new ConnectivityManager.NetworkCallback() {
+                private final Map<Network, Boolean> networks = new HashMap<>();
+
+                @Override
+                public synchronized void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+                    networks.put(network, !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+                    update(true, !networks.containsValue(false));
+                }
+
+                @Override
+                public synchronized void onLost(Network network) {
+                    networks.remove(network);
+                    update(!networks.isEmpty(), !networks.containsValue(false));
+                }
+            };
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            cm.registerNetworkCallback(request, callback);
+        }
+    }
+
+    /**
+     * Unregister the listener, stops monitoring with the last listener.
+     */
+    static synchronized void removeListener(Context context, Listener listener) {
+        if (!listeners.remove(listener) || !listeners.isEmpty() || callback == null) return;
+
+        ConnectivityManager cm = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            if (cm != null) cm.unregisterNetworkCallback(callback);
+        } catch (Exception ignored) {}
+        callback = null;
+    }
+
+    /**
+     * Read the state from the active network, unless it is monitored.
+     */
+    static synchronized void refresh(Context context) {
+        if (callback != null) return;
+
+        ConnectivityManager cm = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null) read(cm);
+    }
+
+    static boolean isConnected() {
+        return connected;
+    }
+
+    static boolean isMetered() {
+        return metered;
+    }
+
+    private static void read(ConnectivityManager cm) {
+        NetworkCapabilities caps = null;
+        try {
+            caps = cm.getNetworkCapabilities(cm.getActiveNetwork());
+        } catch (Exception ignored) {}
+
+        if (caps == null) {
+            update(false, true);
+        } else {
+            update(caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+                    !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+        }
+    }
+
+    private static void update(boolean isConnected, boolean isMetered) {
+        if (connected == isConnected && metered == isMetered) return;
+
+        connected = isConnected;
+        metered = isMetered;
+
+        for (Listener l : listeners) l.onNetworkChanged(isConnected, isMetered);
+    }
+}
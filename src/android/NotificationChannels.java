@@ -0,0 +1,194 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.NotificationChannel;
+import android.app.NotificationChannelGroup;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.core.app.NotificationManagerCompat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static android.content.Context.NOTIFICATION_SERVICE;
+
+/**
+ * Creates and tracks the notification channels used by the plugin.
+ *
+ * Channels are created once per process and their configuration is cached,
+ * so posting or updating the notification does not cost a binder call.
+ * The channel can be customized from JS through the "channel" setting:
+ *
+ *   { id, name, description, importance, group, vibration, badge }
+ */
+final class NotificationChannels {
+
+    static final String DEFAULT_ID = "background_mode_channel";
+    private static final String DEFAULT_NAME = "Background Mode";
+
+    // Higher importance channel used after repeated dismissals
+    static final String FALLBACK_ID = "background_mode_channel_important";
+    private static final String FALLBACK_NAME = "Background Mode (important)";
+
+    // Name of the channel used to bring the app to the foreground
+    private static final String LAUNCH_NAME = "Background Mode (launch)";
+
+    // Channel id -> configuration the channel was created with
+    private static final Map<String, String> created = new ConcurrentHashMap<>();
+
+    private NotificationChannels() {}
+
+    /**
+     * Returns the id of the channel configured by the settings,
+     * creating or updating the channel if needed.
+     */
+    static String ensure(Context context, JSONObject settings) {
+        JSONObject spec = settings != null ? settings.optJSONObject("channel") : null;
+        String id = getChannelId(spec);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return id;
+
+        String signature = spec != null ? spec.toString() : "";
+        if (signature.equals(created.get(id))) return id;
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        if (nm == null) return id;
+
+        NotificationChannel channel = new NotificationChannel(
+                id,
+                spec != null ? spec.optString("name", DEFAULT_NAME) : DEFAULT_NAME,
+                getImportance(spec)
+        );
+        channel.setShowBadge(spec != null && spec.optBoolean("badge", false));
+        channel.setSound(null, null);
+        channel.enableVibration(spec != null && spec.optBoolean("vibration", false));
+
+        if (spec != null && spec.has("description")) {
+            channel.setDescription(spec.optString("description"));
+        }
+
+        String group = spec != null ? spec.optString("group", null) : null;
+        if (group != null && !group.isEmpty()) {
+            nm.createNotificationChannelGroup(new NotificationChannelGroup(group, group));
+            channel.setGroup(group);
+        }
+
+        // Creating an existing channel only updates its name and description
+        nm.createNotificationChannel(channel);
+        created.put(id, signature);
+
+        return id;
+    }
+
+    /**
+     * Returns the id of the high importance channel used to launch the
+     * app from the background, creating the channel if needed.
+     */
+    static String ensureLaunchChannel(Context context, String id) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || created.containsKey(id)) return id;
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+        if (nm == null) return id;
+
+        NotificationChannel channel = new NotificationChannel(
+                id, LAUNCH_NAME, NotificationManager.IMPORTANCE_HIGH);
+        channel.setShowBadge(false);
+        channel.setSound(null, null);
+        channel.enableVibration(false);
+        nm.createNotificationChannel(channel);
+        created.put(id, "");
+
+        return id;
+    }
+
+    /**
+     * Returns a copy of the settings using the fallback channel.
+     */
+    static JSONObject withFallback(JSONObject settings) {
+        try {
+            JSONObject copy = settings != null ? new JSONObject(settings.toString()) : new JSONObject();
+            JSONObject spec = new JSONObject();
+            spec.put("id", FALLBACK_ID);
+            spec.put("name", FALLBACK_NAME);
+            spec.put("importance", "default");
+            copy.put("channel", spec);
+            return copy;
+        } catch (JSONException e) {
+            return settings;
+        }
+    }
+
+    /**
+     * Forget the cached channels, e.g. after the user changed them.
+     */
+    static void invalidate() {
+        created.clear();
+    }
+
+    /**
+     * Returns the current state of the channel, including if the user
+     * has blocked it. Involves binder calls, do not use on hot paths.
+     */
+    static JSONObject getState(Context context, JSONObject settings) {
+        JSONObject spec = settings != null ? settings.optJSONObject("channel") : null;
+        String id = getChannelId(spec);
+
+        boolean enabled = NotificationManagerCompat.from(context).areNotificationsEnabled();
+        int importance = NotificationManagerCompat.IMPORTANCE_DEFAULT;
+        boolean groupBlocked = false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager nm = (NotificationManager) context.getSystemService(NOTIFICATION_SERVICE);
+            NotificationChannel channel = nm != null ? nm.getNotificationChannel(id) : null;
+
+            if (channel != null) {
+                importance = channel.getImportance();
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && channel.getGroup() != null) {
+                    NotificationChannelGroup group = nm.getNotificationChannelGroup(channel.getGroup());
+                    groupBlocked = group != null && group.isBlocked();
+                }
+            }
+        }
+
+        JSONObject state = new JSONObject();
+        try {
+            state.put("id", id);
+            state.put("enabled", enabled);
+            state.put("importance", importance);
+            state.put("blocked", !enabled || groupBlocked
+                    || importance == NotificationManager.IMPORTANCE_NONE);
+        } catch (JSONException ignored) {}
+
+        return state;
+    }
+
+    private static String getChannelId(JSONObject spec) {
+        if (spec == null) return DEFAULT_ID;
+
+        String id = spec.optString("id", "");
+        return id.isEmpty() ? DEFAULT_ID : id;
+    }
+
+    private static int getImportance(JSONObject spec) {
+        if (spec == null) return NotificationManager.IMPORTANCE_LOW;
+
+        Object value = spec.opt("importance");
+        if (value instanceof Number) return ((Number) value).intValue();
+
+        switch (String.valueOf(value)) {
+            case "min":
+                return NotificationManager.IMPORTANCE_MIN;
+            case "default":
+                return NotificationManager.IMPORTANCE_DEFAULT;
+            case "high":
+                return NotificationManager.IMPORTANCE_HIGH;
+            default:
+                return NotificationManager.IMPORTANCE_LOW;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.ActivityManager;
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.app.usage.UsageStatsManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.PowerManager;
+
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Checks everything the background mode depends on in one go and returns a
+ * single readiness report:
+ *
+ *   notifications       { granted, enabled, channelBlocked }
+ *   foregroundService   FGS type declared and its permission granted
+ *   batteryOptimized    the app is subject to battery optimizations
+ *   exactAlarms         exact alarms may be scheduled
+ *   backgroundRestricted the user restricted the app's background activity
+ *   standbyBucket       app standby bucket, -1 below Android 9
+ *   autoStart           a manufacturer auto-start screen exists
+ *   vendor              id of the matched vendor profile, see VendorProfiles
+ *   ready               notifications and foreground service are usable
+ *
+ * The report is cached until the app resumes or a broadcast tells that a
+ * relevant setting changed. Callers arriving while a check is running wait
+ * for that check instead of starting another one, unless the check began
+ * before the cache got invalidated, e.g. by a refreshing caller.
+ */
+final class Preflight {
+
+    // Constants of Android 14, not part of the compile SDK
+    private static final int UPSIDE_DOWN_CAKE = 34;
+    private static final String FOREGROUND_SERVICE_DATA_SYNC = "android.permission.FOREGROUND_SERVICE_DATA_SYNC";
+
+    private static final String POST_NOTIFICATIONS = "android.permission.POST_NOTIFICATIONS";
+
+    // Callers of the running checks, by the generation they check
+    private static final Map<Integer, List<CallbackContext>> waiting = new HashMap<>();
+
+    private static JSONObject cached;
+
+    // Bumped by invalidate, a running check of an older generation is not cached
+    private static int generation = 0;
+
+    private static BroadcastReceiver receiver;
+
+    private Preflight() {}
+
+    /**
+     * Send the readiness report to the callback.
+     *
+     * @param refresh Ignore the cached report.
+     */
+    static void run(Context context, JSONObject settings, ExecutorService pool,
+                    CallbackContext callback, boolean refresh) {
+        Context appContext = context.getApplicationContext();
+        int runGeneration;
+
+        synchronized (Preflight.class) {
+            if (refresh) invalidate();
+
+            if (cached != null) {
+                callback.success(cached);
+                return;
+            }
+
+            // Join a check of the current generation only
+            List<CallbackContext> callbacks = waiting.get(generation);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            waiting.put(generation, callbacks);
+
+            registerReceiver(appContext);
+            runGeneration = generation;
+        }
+
+        pool.execute(() -> {
+            JSONObject report;
+            try {
+                report = check(appContext, settings);
+            } catch (Exception e) {
+                complete(null, runGeneration, e.getMessage());
+                return;
+            }
+            complete(report, runGeneration, null);
+        });
+    }
+
+    /**
+     * Drop the cached report, e.g. when the app resumes.
+     */
+    static synchronized void invalidate() {
+        cached = null;
+        generation++;
+    }
+
+    /**
+     * Stop listening for changes, e.g. when the plugin is destroyed.
+     */
+    static synchronized void release(Context context) {
+        invalidate();
+        if (receiver == null) return;
+
+        try {
+            context.getApplicationContext().unregisterReceiver(receiver);
+        } catch (Exception ignored) {}
+        receiver = null;
+    }
+
+    private static void complete(JSONObject report, int runGeneration, String error) {
+        List<CallbackContext> callbacks;
+
+        synchronized (Preflight.class) {
+            if (report != null && runGeneration == generation) cached = report;
+            callbacks = waiting.remove(runGeneration);
+        }
+        if (callbacks == null) return;
+
+        for (CallbackContext callback : callbacks) {
+            if (report != null) {
+                callback.success(report);
+            } else {
+                callback.error("Preflight failed: " + error);
+            }
+        }
+    }
+
+    private static void registerReceiver(Context context) {
+        if (receiver != null) return;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            filter.addAction(NotificationManager.ACTION_APP_BLOCK_STATE_CHANGED);
+            filter.addAction(NotificationManager.ACTION_NOTIFICATION_CHANNEL_BLOCK_STATE_CHANGED);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            filter.addAction(AlarmManager.ACTION_SCHEDULE_EXACT_ALARM_PERMISSION_STATE_CHANGED);
+        }
+
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        };
+        // System broadcasts, not exported still receives them
+        ContextCompat.registerReceiver(context, receiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    private static JSONObject check(Context context, JSONObject settings) throws JSONException {
+        boolean granted = Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU
+                || ContextCompat.checkSelfPermission(context, POST_NOTIFICATIONS) == PackageManager.PERMISSION_GRANTED;
+        boolean enabled = NotificationManagerCompat.from(context).areNotificationsEnabled();
+        boolean channelBlocked = NotificationChannels.getState(context, settings).optBoolean("blocked");
+
+        JSONObject notifications = new JSONObject();
+        notifications.put("granted", granted);
+        notifications.put("enabled", enabled);
+        notifications.put("channelBlocked", channelBlocked);
+
+        boolean foregroundService = canRunForegroundService(context);
+        boolean backgroundRestricted = isBackgroundRestricted(context);
+
+        JSONObject report = new JSONObject();
+        report.put("notifications", notifications);
+        report.put("foregroundService", foregroundService);
+        report.put("batteryOptimized", isBatteryOptimized(context));
+        report.put("exactAlarms", canScheduleExactAlarms(context));
+        report.put("backgroundRestricted", backgroundRestricted);
+        report.put("standbyBucket", getStandbyBucket(context));
+        report.put("autoStart", BackgroundModeExt.hasAppStartSettings(context));
+        report.put("vendor", VendorProfiles.get(context).id);
+        report.put("ready", granted && enabled && !channelBlocked && foregroundService && !backgroundRestricted);
+        report.put("checkedAt", System.currentTimeMillis());
+        return report;
+    }
+
+    /**
+     * If the service declares its type and the type's permission is granted.
+     */
+    private static boolean canRunForegroundService(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                ServiceInfo info = context.getPackageManager().getServiceInfo(
+                        new ComponentName(context, ForegroundService.class), 0);
+                if ((info.getForegroundServiceType() & ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC) == 0) {
+                    return false;
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+                return false;
+            }
+        }
+        if (Build.VERSION.SDK_INT >= UPSIDE_DOWN_CAKE) {
+            return ContextCompat.checkSelfPermission(context, FOREGROUND_SERVICE_DATA_SYNC)
+                    == PackageManager.PERMISSION_GRANTED;
+        }
+        return true;
+    }
+
+    private static boolean isBatteryOptimized(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return pm != null && !pm.isIgnoringBatteryOptimizations(context.getPackageName());
+    }
+
+    private static boolean canScheduleExactAlarms(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) return true;
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        return am != null && am.canScheduleExactAlarms();
+    }
+
+    private static boolean isBackgroundRestricted(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) return false;
+
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am != null && am.isBackgroundRestricted();
+    }
+
+    private static int getStandbyBucket(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) return -1;
+
+        UsageStatsManager usm = (UsageStatsManager) context.getSystemService(Context.USAGE_STATS_SERVICE);
+        return usm != null ? usm.getAppStandbyBucket() : -1;
+    }
+}
@@ -0,0 +1,183 @@
+package de.einfachhans.BackgroundMode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded, off-heap ring buffer for records produced by native background
+ * work, drained by JS in large batches as a single ArrayBuffer.
+ *
+ * Each record is stored as a little-endian uint32 length followed by its
+ * bytes. When full, the oldest records are dropped and counted.
+ *
+ * A drained batch is laid out as:
+ *
+ *   uint32 record count | uint32 dropped since last drain | records...
+ *
+ * The storage is allocated by the first record and can be released while
+ * empty, see release.
+ */
+public final class RecordBuffer {
+
+    static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LENGTH_SIZE = 4;
+
+    private ByteBuffer buffer;
+    private final int capacity;
+
+    // Read position, write position and used bytes
+    private int head = 0;
+    private int tail = 0;
+    private int size = 0;
+
+    private int records = 0;
+    private int dropped = 0;
+
+    RecordBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Append a record, dropping the oldest records if needed.
+     *
+     * @param record The record's bytes.
+     *
+     * @return false if the record is larger than the buffer.
+     */
+    public synchronized boolean put(byte[] record) {
+        int needed = LENGTH_SIZE + record.length;
+        if (needed > capacity) return false;
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        while (capacity - size < needed) {
+            skipRecord();
+            dropped++;
+        }
+
+        writeInt(record.length);
+        write(record, 0, record.length);
+        records++;
+        return true;
+    }
+
+    /**
+     * Remove up to maxBytes of whole records. A batch holds at least one
+     * record if any is waiting, even a record larger than maxBytes, so a
+     * small limit cannot wedge the buffer.
+     *
+     * @param maxBytes Upper bound of the batch size, 0 for everything.
+     *
+     * @return The batch, see the class documentation for the layout.
+     */
+    public synchronized byte[] drain(int maxBytes) {
+        int limit = maxBytes > 0 ? Math.min(maxBytes, size) : size;
+
+        // Count the whole records fitting into the limit
+        int bytes = 0, count = 0, pos = head;
+        while (count < records) {
+            int length = readIntAt(pos) + LENGTH_SIZE;
+            if (count > 0 && bytes + length > limit) break;
+
+            bytes += length;
+            count++;
+            pos = (pos + length) % capacity;
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(HEADER_SIZE + bytes).order(ByteOrder.LITTLE_ENDIAN);
+        batch.putInt(count);
+        batch.putInt(dropped);
+        if (bytes > 0) read(batch.array(), HEADER_SIZE, bytes);
+
+        records -= count;
+        dropped = 0;
+        return batch.array();
+    }
+
+    /**
+     * Number of records waiting to be drained.
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Free the storage if no record waits to be drained. Producers hold
+     * the same lock, so no record goes to released storage.
+     *
+     * @return The number of bytes released.
+     */
+    synchronized int release() {
+        if (buffer == null || records > 0) return 0;
+
+        buffer = null;
+        head = tail = size = 0;
+        return capacity;
+    }
+
+    /**
+     * Drop all records.
+     */
+    synchronized void clear() {
+        head = tail = size = records = dropped = 0;
+    }
+
+    private void skipRecord() {
+        int length = readIntAt(head) + LENGTH_SIZE;
+        head = (head + length) % capacity;
+        size -= length;
+        records--;
+    }
+
+    private void writeInt(int value) {
+        byte[] bytes = {
+            (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)
+        };
+        write(bytes, 0, LENGTH_SIZE);
+    }
+
+    // Length prefixes may wrap around the end, so read them byte-wise
+    private int readIntAt(int pos) {
+        int value = 0;
+        for (int i = 0; i < LENGTH_SIZE; i++) {
+            value |= (buffer.get((pos + i) % capacity) & 0xFF) << (8 * i);
+        }
+        return value;
+    }
+
+    private void write(byte[] src, int offset, int length) {
+        int first = Math.min(length, capacity - tail);
+
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(tail);
+        dst.put(src, offset, first);
+
+        if (first < length) {
+            dst.position(0);
+            dst.put(src, offset + first, length - first);
+        }
+
+        tail = (tail + length) % capacity;
+        size += length;
+    }
+
+    private void read(byte[] dst, int offset, int length) {
+        int first = Math.min(length, capacity - head);
+
+        ByteBuffer src = buffer.duplicate();
+        src.position(head);
+        src.get(dst, offset, first);
+
+        if (first < length) {
+            src.position(0);
+            src.get(dst, offset + first, length - first);
+        }
+
+        head = (head + length) % capacity;
+        size -= length;
+    }
+}
@@ -0,0 +1,121 @@
+package de.einfachhans.BackgroundMode;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Rate limits the re-posting of the notification after the user (or the
+ * OEM skin) dismissed it.
+ *
+ * The first dismissal is recovered immediately, each further dismissal
+ * within the streak window doubles the delay up to a maximum. Pending
+ * recoveries are coalesced, so a dismiss loop costs at most one repost
+ * per delay. After repeated dismissals the listener is asked to escalate,
+ * once the streak window passes without a dismissal to calm down again.
+ */
+final class RecoverController {
+
+    interface Listener {
+        /**
+         * Re-post the notification.
+         */
+        void onRecover();
+
+        /**
+         * The notification has been dismissed repeatedly.
+         *
+         * @param dismissals Number of dismissals in the current streak.
+         */
+        void onEscalate(int dismissals);
+
+        /**
+         * The escalated streak expired without further dismissals.
+         */
+        void onCalm();
+    }
+
+    // Dismissals in a row until the listener is asked to escalate
+    static final int ESCALATE_AFTER = 3;
+
+    private static final long BASE_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 60 * 1000;
+
+    // Quiet period after which a dismissal starts a new streak
+    private static final long STREAK_WINDOW_MS = 5 * 60 * 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+
+    private long lastDismissedAt = 0;
+    private int streak = 0;
+    private boolean pending = false;
+
+    private final Runnable recoverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pending = false;
+            listener.onRecover();
+        }
+    };
+
+    private final Runnable calmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            streak = 0;
+            listener.onCalm();
+        }
+    };
+
+    RecoverController(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Called for each ACTION_RECOVER. Must be called on the main thread.
+     */
+    void onDismissed() {
+        long now = SystemClock.elapsedRealtime();
+
+        if (now - lastDismissedAt > STREAK_WINDOW_MS) {
+            streak = 0;
+        }
+        lastDismissedAt = now;
+        streak++;
+
+        if (streak == ESCALATE_AFTER) {
+            listener.onEscalate(streak);
+        }
+        if (streak >= ESCALATE_AFTER) {
+            handler.removeCallbacks(calmRunnable);
+            handler.postDelayed(calmRunnable, STREAK_WINDOW_MS + 1);
+        }
+
+        // A repost is already scheduled
+        if (pending) return;
+
+        long delay = getDelay(streak);
+        if (delay == 0) {
+            listener.onRecover();
+        } else {
+            pending = true;
+            handler.postDelayed(recoverRunnable, delay);
+        }
+    }
+
+    /**
+     * Drop any scheduled repost and the end of the streak.
+     */
+    void cancel() {
+        handler.removeCallbacks(recoverRunnable);
+        handler.removeCallbacks(calmRunnable);
+        pending = false;
+    }
+
+    private static long getDelay(int streak) {
+        if (streak <= 1) return 0;
+
+        int shift = Math.min(streak - 2, 16);
+        return Math.min(BASE_DELAY_MS << shift, MAX_DELAY_MS);
+    }
+}
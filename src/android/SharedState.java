@@ -0,0 +1,357 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plugin state shared between the UI process and a foreground service
+ * running in its own android:process.
+ *
+ * The state lives in a small memory-mapped file. Writers serialize through
+ * a file lock and bump a sequence counter around each write (odd while
+ * writing). Readers never lock: they retry if the counter changed while
+ * reading, so reads cost no IPC. Only the liveness of the service process
+ * is checked through /proc, at most once per LIVENESS_TTL_MS.
+ *
+ * The file outlives the processes. A writer killed mid-write leaves the
+ * sequence odd, so the parity is taken from the value on each write and
+ * the sequence is made even again when the file is opened.
+ *
+ * Settings larger than SETTINGS_SIZE (16 KB as UTF-8) are not shared:
+ * they are stored as missing, so the other process reads no runtime
+ * settings or empty defaults. A warning is logged.
+ *
+ * Layout:
+ *
+ *   0   int   sequence
+ *   4   int   flags, see FLAG_ constants
+ *   8   int   pid of the service process
+ *   12  int   settings version, bumped on each settings write
+ *   16  long  last heartbeat, elapsedRealtime (same clock in all processes)
+ *   24  long  heartbeat threshold in ms
+ *   32  int   length of the default settings
+ *   36  int   length of the runtime settings, -1 if none
+ *   40  bytes default settings (UTF-8 JSON), SETTINGS_SIZE
+ *   ..  bytes runtime settings (UTF-8 JSON), SETTINGS_SIZE
+ */
+final class SharedState {
+
+    static final int FLAG_RUNNING = 1;
+    static final int FLAG_AUDIO = 2;
+
+    private static final String FILE_NAME = "background-mode.state";
+
+    private static final int OFF_SEQ = 0;
+    private static final int OFF_FLAGS = 4;
+    private static final int OFF_PID = 8;
+    private static final int OFF_SETTINGS_VERSION = 12;
+    private static final int OFF_HEARTBEAT = 16;
+    private static final int OFF_THRESHOLD = 24;
+    private static final int OFF_DEFAULTS_LEN = 32;
+    private static final int OFF_RUNTIME_LEN = 36;
+    private static final int OFF_DEFAULTS = 40;
+
+    private static final int SETTINGS_SIZE = 16 * 1024;
+    private static final int OFF_RUNTIME = OFF_DEFAULTS + SETTINGS_SIZE;
+    private static final int SIZE = OFF_RUNTIME + SETTINGS_SIZE;
+
+    // How long a liveness check of the service process is trusted
+    private static final long LIVENESS_TTL_MS = 1000;
+
+    private static volatile SharedState instance;
+
+    private final MappedByteBuffer buffer;
+    private final FileChannel channel;
+
+    // Parsed settings, valid for settingsVersion
+    private int settingsVersion = -1;
+    private JSONObject defaults = new JSONObject();
+    private JSONObject runtime = null;
+
+    // Target of fullFence, never read for its value
+    private static volatile int fence;
+
+    private SharedState(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+
+        // No writer holds the lock, an odd sequence is left by a killed one
+        try (FileLock ignored = channel.lock()) {
+            int seq = buffer.getInt(OFF_SEQ);
+            if ((seq & 1) != 0) buffer.putInt(OFF_SEQ, seq + 1);
+        }
+    }
+
+    /**
+     * Returns the shared state, null if the file cannot be mapped.
+     */
+    static SharedState get(Context context) {
+        SharedState state = instance;
+        if (state != null) return state;
+
+        synchronized (SharedState.class) {
+            if (instance == null) {
+                try {
+                    instance = new SharedState(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+                } catch (Exception e) {
+                    android.util.Log.e("SharedState", "Cannot map state file", e);
+                }
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Forget the parsed settings, see MemoryGovernor. The next read
+     * parses them again.
+     */
+    static void dropCaches() {
+        SharedState state = instance;
+        if (state == null) return;
+
+        synchronized (state) {
+            state.settingsVersion = -1;
+            state.defaults = new JSONObject();
+            state.runtime = null;
+        }
+    }
+
+    /**
+     * Mark the service as running within the calling process. Also drops
+     * the heartbeat and audio state of a previous run, the clock restarts
+     * with each boot.
+     */
+    void setRunning(boolean running) {
+        write(() -> {
+            int flags = buffer.getInt(OFF_FLAGS) & ~FLAG_AUDIO;
+            buffer.putInt(OFF_FLAGS, running ? flags | FLAG_RUNNING : flags & ~FLAG_RUNNING);
+            buffer.putInt(OFF_PID, running ? android.os.Process.myPid() : 0);
+            if (running) buffer.putLong(OFF_HEARTBEAT, 0);
+        });
+    }
+
+    /**
+     * If the service runs, in this or another process of the app.
+     */
+    boolean isRunning() {
+        int[] values = new int[2];
+        read(() -> {
+            values[0] = buffer.getInt(OFF_FLAGS);
+            values[1] = buffer.getInt(OFF_PID);
+        });
+
+        if ((values[0] & FLAG_RUNNING) == 0) return false;
+        // The flag survives if the service process got killed
+        return isAlive(values[1]);
+    }
+
+    /**
+     * Publish if the service plays the silent audio, see SilentAudio.
+     */
+    void setAudio(boolean playing) {
+        write(() -> {
+            int flags = buffer.getInt(OFF_FLAGS);
+            buffer.putInt(OFF_FLAGS, playing ? flags | FLAG_AUDIO : flags & ~FLAG_AUDIO);
+        });
+    }
+
+    /**
+     * If the running service plays the silent audio, in any process.
+     */
+    boolean isAudioPlaying() {
+        int[] values = new int[2];
+        read(() -> {
+            values[0] = buffer.getInt(OFF_FLAGS);
+            values[1] = buffer.getInt(OFF_PID);
+        });
+
+        int flags = FLAG_RUNNING | FLAG_AUDIO;
+        return (values[0] & flags) == flags && isAlive(values[1]);
+    }
+
+    // Last liveness check of the service process, see isAlive
+    private int checkedPid = 0;
+    private boolean checkedAlive = false;
+    private long checkedAt = 0;
+
+    private synchronized boolean isAlive(int pid) {
+        long now = SystemClock.elapsedRealtime();
+        if (pid != checkedPid || now - checkedAt > LIVENESS_TTL_MS) {
+            checkedAlive = new File("/proc/" + pid).exists();
+            checkedPid = pid;
+            checkedAt = now;
+        }
+        return checkedAlive;
+    }
+
+    void setHeartbeat(long threshold) {
+        long now = SystemClock.elapsedRealtime();
+        write(() -> {
+            buffer.putLong(OFF_HEARTBEAT, now);
+            if (threshold > 0) buffer.putLong(OFF_THRESHOLD, threshold);
+        });
+    }
+
+    long getLastHeartbeat() {
+        long[] value = new long[1];
+        read(() -> value[0] = buffer.getLong(OFF_HEARTBEAT));
+        return value[0];
+    }
+
+    long getHeartbeatThreshold() {
+        long[] value = new long[1];
+        read(() -> value[0] = buffer.getLong(OFF_THRESHOLD));
+        return value[0];
+    }
+
+    /**
+     * Share the default settings, stored as missing if over SETTINGS_SIZE.
+     */
+    void setDefaultSettings(JSONObject settings) {
+        byte[] bytes = settings != null ? encode(settings) : null;
+        write(() -> {
+            putBlob(OFF_DEFAULTS, OFF_DEFAULTS_LEN, bytes);
+            buffer.putInt(OFF_SETTINGS_VERSION, buffer.getInt(OFF_SETTINGS_VERSION) + 1);
+        });
+    }
+
+    /**
+     * Share the runtime settings, stored as missing if over SETTINGS_SIZE.
+     */
+    void setRuntimeSettings(JSONObject settings) {
+        byte[] bytes = settings != null ? encode(settings) : null;
+        write(() -> {
+            putBlob(OFF_RUNTIME, OFF_RUNTIME_LEN, bytes);
+            buffer.putInt(OFF_SETTINGS_VERSION, buffer.getInt(OFF_SETTINGS_VERSION) + 1);
+        });
+    }
+
+    synchronized JSONObject getDefaultSettings() {
+        refreshSettings();
+        return defaults;
+    }
+
+    synchronized JSONObject getRuntimeSettings() {
+        refreshSettings();
+        return runtime;
+    }
+
+    /**
+     * Parse the settings again only if another write happened.
+     */
+    private void refreshSettings() {
+        int[] version = new int[1];
+        byte[][] blobs = new byte[2][];
+
+        read(() -> {
+            version[0] = buffer.getInt(OFF_SETTINGS_VERSION);
+            if (version[0] == settingsVersion) return;
+
+            blobs[0] = getBlob(OFF_DEFAULTS, OFF_DEFAULTS_LEN);
+            blobs[1] = getBlob(OFF_RUNTIME, OFF_RUNTIME_LEN);
+        });
+
+        if (version[0] == settingsVersion) return;
+
+        defaults = blobs[0] != null ? decode(blobs[0]) : new JSONObject();
+        runtime = blobs[1] != null ? decode(blobs[1]) : null;
+        settingsVersion = version[0];
+    }
+
+    private void putBlob(int offset, int lengthOffset, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(lengthOffset, -1);
+            return;
+        }
+
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(offset);
+        dst.put(bytes);
+        buffer.putInt(lengthOffset, bytes.length);
+    }
+
+    private byte[] getBlob(int offset, int lengthOffset) {
+        int length = buffer.getInt(lengthOffset);
+        if (length <= 0 || length > SETTINGS_SIZE) return null;
+
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buffer.duplicate();
+        src.position(offset);
+        src.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] encode(JSONObject settings) {
+        byte[] bytes = settings.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > SETTINGS_SIZE) {
+            android.util.Log.w("SharedState", "Settings too large to share: " + bytes.length);
+            return null;
+        }
+        return bytes;
+    }
+
+    private static JSONObject decode(byte[] bytes) {
+        try {
+            return new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            return new JSONObject();
+        }
+    }
+
+    /**
+     * Run the writer under the file lock, with the sequence odd meanwhile.
+     */
+    private synchronized void write(Runnable writer) {
+        try (FileLock ignored = channel.lock()) {
+            int base = buffer.getInt(OFF_SEQ) & ~1;
+            buffer.putInt(OFF_SEQ, base + 1);
+            fullFence();
+            writer.run();
+            fullFence();
+            buffer.putInt(OFF_SEQ, base + 2);
+        } catch (Exception e) {
+            android.util.Log.e("SharedState", "Cannot write state", e);
+        }
+    }
+
+    /**
+     * Run the reader until it saw a consistent snapshot.
+     */
+    private void read(Runnable reader) {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int seq = buffer.getInt(OFF_SEQ);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            fullFence();
+            reader.run();
+            fullFence();
+            if (buffer.getInt(OFF_SEQ) == seq) return;
+        }
+        // A writer died mid-write, use what is there
+        reader.run();
+    }
+
+    /**
+     * Order the buffer accesses before against those after. Accesses of a
+     * mapped buffer are plain, a volatile store followed by a volatile
+     * load is a full barrier (VarHandle fences need Android 13).
+     */
+    private static void fullFence() {
+        fence = 0;
+        int ignored = fence;
+    }
+}
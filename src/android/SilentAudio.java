@@ -0,0 +1,118 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+
+/**
+ * Keep-alive through near-silent audio, the Android counterpart of the
+ * appbeep of iOS. A playing track keeps the process in the foreground
+ * audio state, which OEM task killers spare more often than a hidden
+ * WebView.
+ *
+ * The track is static: one short buffer written once and looped by the
+ * mixer, so no thread of the app wakes up to feed it. The samples toggle
+ * by one LSB, silence some mixers skip is avoided while nothing is audible.
+ */
+final class SilentAudio {
+
+    // Short enough to cost no memory, long enough for few loop restarts
+    private static final int BUFFER_MS = 250;
+
+    private static AudioTrack track;
+
+    private SilentAudio() {}
+
+    /**
+     * Start the playback, does nothing if already playing.
+     *
+     * @return false if the track could not be created.
+     */
+    static synchronized boolean start(Context context) {
+        if (track != null) return true;
+
+        int rate = getSampleRate(context);
+        int frames = rate * BUFFER_MS / 1000;
+        short[] samples = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (short) (i & 1);
+        }
+
+        AudioTrack created = null;
+        try {
+            created = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_UNKNOWN)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .setSampleRate(rate)
+                            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                            .build())
+                    .setTransferMode(AudioTrack.MODE_STATIC)
+                    .setBufferSizeInBytes(frames * 2)
+                    .build();
+
+            created.write(samples, 0, frames);
+            created.setLoopPoints(0, frames, -1);
+            created.play();
+        } catch (Exception e) {
+            android.util.Log.w("SilentAudio", "Cannot play the keep-alive audio", e);
+            if (created != null) created.release();
+            return false;
+        }
+
+        track = created;
+        return true;
+    }
+
+    static synchronized void stop() {
+        if (track == null) return;
+
+        try {
+            track.stop();
+        } catch (IllegalStateException ignored) {}
+        track.release();
+        track = null;
+    }
+
+    static synchronized boolean isPlaying() {
+        return track != null;
+    }
+
+    /**
+     * If the track plays in this process or, with the service in its own
+     * android:process, in the service's process, see SharedState.
+     */
+    static boolean isPlaying(Context context) {
+        if (isPlaying()) return true;
+
+        SharedState state = SharedState.get(context);
+        return state != null && state.isAudioPlaying();
+    }
+
+    /**
+     * Times the mixer found no data, -1 below Android 7 or if not playing
+     * in this process.
+     */
+    static synchronized int getUnderruns() {
+        if (track == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return -1;
+        return track.getUnderrunCount();
+    }
+
+    /**
+     * The output's native rate, so the mixer does not resample.
+     */
+    private static int getSampleRate(Context context) {
+        AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String rate = am != null ? am.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE) : null;
+        try {
+            if (rate != null) return Integer.parseInt(rate);
+        } catch (NumberFormatException ignored) {}
+        return AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+    }
+}
@@ -0,0 +1,81 @@
+package de.einfachhans.BackgroundMode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compact binary encoding of the plugin status and counters, sent to JS as
+ * an ArrayBuffer instead of a JSON string. Must stay in sync with
+ * exports._decodeStatus in www/background-mode.js.
+ *
+ * Layout (little-endian):
+ *
+ *   0  uint8   version
+ *   1  uint8   flags, see FLAG_ constants
+ *   2  uint16  reserved
+ *   4  int32   ms since the last heartbeat, -1 if none
+ *   8  uint32  stall count
+ *  12  uint32  total stalled ms
+ *  16  uint32  notification recover count
+ *  20  uint32  native timer wakeups
+ *  24  uint32  records waiting to be drained
+ *
+ * Native timer ticks are encoded as three uint32: tick count, ms late,
+ * flags (bit 0: tick held back while offline and flushed).
+ */
+final class StatusCodec {
+
+    static final int VERSION = 1;
+
+    static final int FLAG_ENABLED = 1;
+    static final int FLAG_SERVICE_RUNNING = 1 << 1;
+    static final int FLAG_STALLED = 1 << 2;
+    static final int FLAG_ESCALATED = 1 << 3;
+
+    private static final int SIZE = 28;
+
+    private StatusCodec() {}
+
+    /**
+     * Encode the current status.
+     *
+     * @param enabled If the background mode is enabled.
+     */
+    static byte[] encode(boolean enabled) {
+        int flags = 0;
+        if (enabled) flags |= FLAG_ENABLED;
+        if (ForegroundService.isRunning()) flags |= FLAG_SERVICE_RUNNING;
+        if (Heartbeat.isStalled()) flags |= FLAG_STALLED;
+        if (ForegroundService.isEscalated()) flags |= FLAG_ESCALATED;
+
+        TimerScheduler scheduler = TimerScheduler.get();
+
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) flags);
+        buffer.putShort((short) 0);
+        buffer.putInt(clamp(Heartbeat.getSilentMs()));
+        buffer.putInt(Heartbeat.getStallCount());
+        buffer.putInt(clamp(Heartbeat.getStalledTotalMs()));
+        buffer.putInt(ForegroundService.getRecoverCount());
+        buffer.putInt(scheduler != null ? scheduler.getWakeups() : 0);
+        buffer.putInt(ForegroundService.getPendingRecordCount());
+
+        return buffer.array();
+    }
+
+    /**
+     * Encode a native timer tick.
+     */
+    static byte[] encodeTick(int tick, long late, boolean flush) {
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(tick);
+        buffer.putInt(clamp(late));
+        buffer.putInt(flush ? 1 : 0);
+        return buffer.array();
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+}
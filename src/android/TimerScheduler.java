@@ -0,0 +1,313 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.core.content.ContextCompat;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Native periodic timers for JS callbacks, not affected by the throttling
+ * of timers in a backgrounded WebView.
+ *
+ * Each timer may fire anywhere within [deadline, deadline + window]. The
+ * scheduler wakes up at the earliest end of all windows and fires every
+ * timer whose window has started, so timers with compatible windows share
+ * one wakeup. Short waits run on a HandlerThread, long waits use an
+ * AlarmManager alarm that is allowed while idle.
+ *
+ * Timers may require a network ("connected" or "unmetered"). Their ticks
+ * are held back while the network is not suitable and fired at once, as
+ * a flush, when a suitable network appears.
+ *
+ * The scheduler lives as long as the foreground service.
+ */
+final class TimerScheduler {
+
+    private static final String ACTION_ALARM = "de.einfachhans.BackgroundMode.TIMER_ALARM";
+
+    static final long MIN_INTERVAL_MS = 1000;
+
+    // Waits longer than this are handed to the AlarmManager
+    private static final long ALARM_THRESHOLD_MS = 60 * 1000;
+
+    private static final class Timer {
+        final String id;
+        final long interval;
+        final long window;
+        final String network;
+        final CallbackContext callback;
+        long deadline;
+        int ticks = 0;
+        boolean missed = false;
+
+        Timer(String id, long interval, long window, String network, CallbackContext callback) {
+            this.id = id;
+            this.interval = interval;
+            this.window = window;
+            this.network = network;
+            this.callback = callback;
+            this.deadline = SystemClock.elapsedRealtime() + interval;
+        }
+
+        boolean isNetworkSuitable() {
+            switch (network) {
+                case "connected":
+                    return NetworkMonitor.isConnected();
+                case "unmetered":
+                    return NetworkMonitor.isConnected() && !NetworkMonitor.isMetered();
+                default:
+                    return true;
+            }
+        }
+    }
+
+    private static TimerScheduler instance;
+
+    private final Map<String, Timer> timers = new HashMap<>();
+    private final Context context;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final BroadcastReceiver alarmReceiver;
+    private final Runnable wakeupRunnable = this::onWakeup;
+    private final NetworkMonitor.Listener networkListener;
+    private PendingIntent alarmIntent;
+    private boolean alarmSet = false;
+
+    private int wakeups = 0;
+
+    private TimerScheduler(Context context) {
+        this.context = context.getApplicationContext();
+
+        thread = new HandlerThread("BackgroundModeTimers");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        alarmReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onWakeup();
+            }
+        };
+        ContextCompat.registerReceiver(this.context, alarmReceiver,
+                new IntentFilter(ACTION_ALARM), null, handler,
+                ContextCompat.RECEIVER_NOT_EXPORTED);
+
+        networkListener = (connected, metered) -> handler.post(this::flush);
+        NetworkMonitor.addListener(this.context, networkListener);
+    }
+
+    /**
+     * Start the scheduler, called when the service is created.
+     */
+    static synchronized void start(Context context) {
+        if (instance == null) {
+            instance = new TimerScheduler(context);
+        }
+    }
+
+    /**
+     * Stop the scheduler and release all timers, called when the
+     * service is destroyed.
+     */
+    static synchronized void stop() {
+        if (instance == null) return;
+
+        TimerScheduler scheduler = instance;
+        instance = null;
+        scheduler.handler.post(scheduler::shutdown);
+    }
+
+    /**
+     * Returns the running scheduler or null if the service is not running.
+     */
+    static synchronized TimerScheduler get() {
+        return instance;
+    }
+
+    /**
+     * Register a periodic timer, replacing any timer with the same id.
+     *
+     * @param id       Unique id of the timer.
+     * @param interval Interval in ms.
+     * @param window   Allowed delay in ms, used to coalesce wakeups.
+     * @param network  Required network: "connected", "unmetered" or "any".
+     * @param callback Callback receiving every tick.
+     */
+    void register(String id, long interval, long window, String network, CallbackContext callback) {
+        long safeInterval = Math.max(interval, MIN_INTERVAL_MS);
+        long safeWindow = Math.max(0, Math.min(window, safeInterval));
+        String safeNetwork = network != null ? network : "any";
+
+        handler.post(() -> {
+            Timer replaced = timers.put(id, new Timer(id, safeInterval, safeWindow, safeNetwork, callback));
+            if (replaced != null) release(replaced);
+            reschedule();
+        });
+    }
+
+    /**
+     * Remove the timer and release its callback.
+     */
+    void unregister(String id) {
+        handler.post(() -> {
+            Timer timer = timers.remove(id);
+            if (timer == null) return;
+
+            release(timer);
+            reschedule();
+        });
+    }
+
+    /**
+     * Drop all timers without notifying their callbacks, e.g. when the
+     * WebView owning the callbacks is destroyed.
+     */
+    void clear() {
+        handler.post(() -> {
+            timers.clear();
+            reschedule();
+        });
+    }
+
+    /**
+     * Number of wakeups so far, each one firing one or more timers.
+     */
+    int getWakeups() {
+        return wakeups;
+    }
+
+    private void onWakeup() {
+        long now = SystemClock.elapsedRealtime();
+        boolean fired = false;
+
+        for (Timer timer : timers.values()) {
+            if (timer.deadline > now) continue;
+
+            if (timer.isNetworkSuitable()) {
+                fire(timer, now - timer.deadline, false);
+                fired = true;
+            } else {
+                // Hold the tick back until a suitable network appears
+                timer.missed = true;
+            }
+
+            timer.deadline += timer.interval;
+            // Skip the missed ticks instead of firing them in a burst
+            if (timer.deadline <= now) {
+                timer.deadline = now + timer.interval;
+            }
+        }
+
+        if (fired) wakeups++;
+        reschedule();
+    }
+
+    /**
+     * Fire the ticks held back while the network was not suitable.
+     */
+    private void flush() {
+        boolean fired = false;
+
+        for (Timer timer : timers.values()) {
+            if (!timer.missed || !timer.isNetworkSuitable()) continue;
+
+            timer.missed = false;
+            fire(timer, 0, true);
+            fired = true;
+        }
+
+        if (fired) wakeups++;
+    }
+
+    private void fire(Timer timer, long late, boolean flush) {
+        PluginResult result = new PluginResult(PluginResult.Status.OK,
+                StatusCodec.encodeTick(++timer.ticks, late, flush));
+        result.setKeepCallback(true);
+        timer.callback.sendPluginResult(result);
+    }
+
+    /**
+     * Send a final result without keepCallback, so the bridge drops the
+     * callback, like LocationBatcher does on shutdown.
+     */
+    private static void release(Timer timer) {
+        timer.callback.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+    }
+
+    /**
+     * Schedule the next wakeup at the earliest end of all timer windows.
+     */
+    private void reschedule() {
+        cancelAlarm();
+
+        if (timers.isEmpty()) return;
+
+        long wakeAt = Long.MAX_VALUE;
+        for (Timer timer : timers.values()) {
+            wakeAt = Math.min(wakeAt, timer.deadline + timer.window);
+        }
+
+        long delay = Math.max(0, wakeAt - SystemClock.elapsedRealtime());
+        if (delay < ALARM_THRESHOLD_MS || !setAlarm(wakeAt)) {
+            handler.postDelayed(wakeupRunnable, delay);
+        }
+    }
+
+    private boolean setAlarm(long triggerAt) {
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (am == null) return false;
+
+        if (alarmIntent == null) {
+            Intent intent = new Intent(ACTION_ALARM).setPackage(context.getPackageName());
+            alarmIntent = PendingIntent.getBroadcast(context, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        }
+
+        int type = AlarmManager.ELAPSED_REALTIME_WAKEUP;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || am.canScheduleExactAlarms()) {
+            am.setExactAndAllowWhileIdle(type, triggerAt, alarmIntent);
+        } else {
+            am.setAndAllowWhileIdle(type, triggerAt, alarmIntent);
+        }
+        alarmSet = true;
+        return true;
+    }
+
+    private void cancelAlarm() {
+        handler.removeCallbacks(wakeupRunnable);
+        if (!alarmSet) return;
+
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (am != null) am.cancel(alarmIntent);
+        alarmSet = false;
+    }
+
+    private void shutdown() {
+        cancelAlarm();
+        NetworkMonitor.removeListener(context, networkListener);
+
+        for (Timer timer : timers.values()) {
+            timer.callback.error("Background mode disabled");
+        }
+        timers.clear();
+
+        try {
+            context.unregisterReceiver(alarmReceiver);
+        } catch (Exception ignored) {}
+
+        thread.quitSafely();
+    }
+}
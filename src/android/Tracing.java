@@ -0,0 +1,185 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trace sections of the plugin's hot paths, visible in Perfetto and
+ * systrace while the app is traced.
+ *
+ * Sections are off by default and toggled from JS at runtime, so they
+ * cost a volatile read when off. Optionally the sections are also kept in
+ * a ring buffer on the device, exported in the Chrome trace event format
+ * which Perfetto and chrome://tracing open.
+ *
+ * Sections must end on the thread they began. Spans crossing threads or
+ * callbacks use async slices, which the system tracer supports from
+ * Android 10.
+ */
+final class Tracing {
+
+    private static final int CAPACITY = 8192;
+
+    private static final String FILE_NAME = "background-mode-trace.json";
+
+    private static final byte BEGIN = 'B';
+    private static final byte END = 'E';
+    private static final byte ASYNC_BEGIN = 'b';
+    private static final byte ASYNC_END = 'e';
+
+    private static volatile boolean enabled = false;
+    private static volatile boolean recording = false;
+
+    private static final AtomicInteger nextCookie = new AtomicInteger(1);
+
+    // Ring buffer of the recorded events, see record
+    private static String[] names;
+    private static long[] times;
+    private static int[] threads;
+    private static int[] cookies;
+    private static byte[] phases;
+    private static int next = 0;
+    private static int count = 0;
+
+    private Tracing() {}
+
+    /**
+     * Turn the sections on or off.
+     *
+     * @param on     Emit the sections to the system tracer.
+     * @param record Keep them in the ring buffer too, see export.
+     */
+    static synchronized void setEnabled(boolean on, boolean record) {
+        if (record && names == null) {
+            names = new String[CAPACITY];
+            times = new long[CAPACITY];
+            threads = new int[CAPACITY];
+            cookies = new int[CAPACITY];
+            phases = new byte[CAPACITY];
+        }
+        recording = on && record;
+        enabled = on;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begin a section on the calling thread.
+     *
+     * @return Pass to end(), so a toggle in between keeps the pairs intact.
+     */
+    static boolean begin(String name) {
+        if (!enabled) return false;
+
+        Trace.beginSection(name);
+        if (recording) record(BEGIN, name, 0);
+        return true;
+    }
+
+    /**
+     * Same as begin(prefix + name), only concatenated if tracing is on.
+     */
+    static boolean begin(String prefix, String name) {
+        return enabled && begin(prefix + name);
+    }
+
+    static void end(boolean began) {
+        if (!began) return;
+
+        Trace.endSection();
+        if (recording) record(END, null, 0);
+    }
+
+    /**
+     * Begin a slice which may end on another thread.
+     *
+     * @return The cookie to pass to endAsync, 0 if tracing is off.
+     */
+    static int beginAsync(String name) {
+        if (!enabled) return 0;
+
+        int cookie = nextCookie.getAndIncrement();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+        if (recording) record(ASYNC_BEGIN, name, cookie);
+        return cookie;
+    }
+
+    static void endAsync(String name, int cookie) {
+        if (cookie == 0) return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+        if (recording) record(ASYNC_END, name, cookie);
+    }
+
+    private static synchronized void record(byte phase, String name, int cookie) {
+        if (names == null) return;
+
+        names[next] = name;
+        times[next] = SystemClock.elapsedRealtimeNanos();
+        threads[next] = Process.myTid();
+        cookies[next] = cookie;
+        phases[next] = phase;
+
+        next = (next + 1) % CAPACITY;
+        if (count < CAPACITY) count++;
+    }
+
+    /**
+     * Write the recorded events to a file and clear the buffer.
+     *
+     * @return The absolute path of the file.
+     */
+    static String export(Context context) throws Exception {
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        int pid = Process.myPid();
+
+        synchronized (Tracing.class) {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+                int start = (next - count + CAPACITY) % CAPACITY;
+                boolean first = true;
+
+                for (int i = 0; i < count; i++) {
+                    int at = (start + i) % CAPACITY;
+                    if (!first) out.write(',');
+                    first = false;
+
+                    out.write("{\"ph\":\"");
+                    out.write((char) phases[at]);
+                    out.write("\",\"pid\":" + pid + ",\"tid\":" + threads[at]);
+                    out.write(",\"ts\":" + times[at] / 1000);
+                    if (names[at] != null) {
+                        out.write(",\"name\":" + JSONObject.quote(names[at]));
+                    }
+                    if (cookies[at] != 0) {
+                        out.write(",\"cat\":\"async\",\"id\":" + cookies[at]);
+                    }
+                    out.write('}');
+                }
+                out.write("]}");
+            }
+
+            next = count = 0;
+        }
+        return file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,198 @@
+package de.einfachhans.BackgroundMode;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * What is known about the background restrictions of a manufacturer's
+ * Android flavor, read from res/raw/bgmode_vendor_profiles.json.
+ *
+ * A profile matches if Build.MANUFACTURER or Build.BRAND is one of its
+ * names, and optionally its rom pattern finds Build.DISPLAY or the
+ * incremental version and the SDK is within minSdk and maxSdk. The first
+ * matching profile wins, so specific profiles come first.
+ *
+ * The file is read once, on first use, and only the matched profile kept.
+ */
+final class VendorProfiles {
+
+    private static final String RESOURCE = "bgmode_vendor_profiles";
+
+    static final long DEFAULT_KEEP_ALIVE_INTERVAL = 5000;
+    // Shorter intervals would keep the main thread busy forcing visibility
+    static final long MIN_KEEP_ALIVE_INTERVAL = 1000;
+    static final String DEFAULT_SERVICE_TYPE = "dataSync";
+
+    static final class Profile {
+        final String id;
+        // Auto-start and battery settings screens, best first
+        final List<Intent> autoStart;
+        final List<Intent> battery;
+        final long keepAliveInterval;
+        // Foreground service type known to survive best, e.g. mediaPlayback
+        final String serviceType;
+
+        Profile(String id, List<Intent> autoStart, List<Intent> battery,
+                long keepAliveInterval, String serviceType) {
+            this.id = id;
+            this.autoStart = autoStart;
+            this.battery = battery;
+            this.keepAliveInterval = keepAliveInterval;
+            this.serviceType = serviceType;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("id", id);
+                json.put("autoStart", autoStart.size());
+                json.put("battery", battery.size());
+                json.put("keepAliveInterval", keepAliveInterval);
+                json.put("serviceType", serviceType);
+            } catch (Exception ignored) {}
+            return json;
+        }
+    }
+
+    private static volatile Profile profile;
+
+    private VendorProfiles() {}
+
+    /**
+     * Returns the device's profile, or a generic profile probing the
+     * auto-start screens of all manufacturers if none matches.
+     */
+    static Profile get(Context context) {
+        Profile matched = profile;
+        if (matched != null) return matched;
+
+        synchronized (VendorProfiles.class) {
+            if (profile != null) return profile;
+
+            boolean traced = Tracing.begin("VendorProfiles.load");
+            try {
+                profile = load(context.getApplicationContext());
+            } finally {
+                Tracing.end(traced);
+            }
+            return profile;
+        }
+    }
+
+    private static Profile load(Context context) {
+        JSONArray profiles;
+        try {
+            profiles = new JSONObject(readResource(context)).getJSONArray("profiles");
+        } catch (Exception e) {
+            android.util.Log.w("VendorProfiles", "Cannot read the vendor profiles", e);
+            return new Profile("generic", Collections.emptyList(), Collections.emptyList(),
+                    DEFAULT_KEEP_ALIVE_INTERVAL, DEFAULT_SERVICE_TYPE);
+        }
+
+        String manufacturer = Build.MANUFACTURER.toLowerCase(Locale.ROOT);
+        String brand = Build.BRAND.toLowerCase(Locale.ROOT);
+        String rom = Build.DISPLAY + " " + Build.VERSION.INCREMENTAL;
+
+        List<Intent> allAutoStart = new ArrayList<>();
+
+        for (int i = 0; i < profiles.length(); i++) {
+            JSONObject spec = profiles.optJSONObject(i);
+            if (spec == null) continue;
+
+            if (matches(spec, manufacturer, brand, rom)) {
+                android.util.Log.d("VendorProfiles", "Matched vendor profile: " + spec.optString("id"));
+                return new Profile(
+                        spec.optString("id"),
+                        toIntents(spec.optJSONArray("autoStart")),
+                        toIntents(spec.optJSONArray("battery")),
+                        Math.max(MIN_KEEP_ALIVE_INTERVAL,
+                                spec.optLong("keepAliveInterval", DEFAULT_KEEP_ALIVE_INTERVAL)),
+                        spec.optString("serviceType", DEFAULT_SERVICE_TYPE));
+            }
+            allAutoStart.addAll(toIntents(spec.optJSONArray("autoStart")));
+        }
+
+        // Unknown vendor, the screen may still be one of a known flavor
+        return new Profile("generic", allAutoStart, Collections.emptyList(),
+                DEFAULT_KEEP_ALIVE_INTERVAL, DEFAULT_SERVICE_TYPE);
+    }
+
+    private static boolean matches(JSONObject spec, String manufacturer, String brand, String rom) {
+        JSONArray names = spec.optJSONArray("match");
+        if (names == null) return false;
+
+        boolean named = false;
+        for (int i = 0; i < names.length() && !named; i++) {
+            String name = names.optString(i);
+            named = name.equals(manufacturer) || name.equals(brand);
+        }
+        if (!named) return false;
+
+        if (Build.VERSION.SDK_INT < spec.optInt("minSdk", 0)) return false;
+        if (Build.VERSION.SDK_INT > spec.optInt("maxSdk", Integer.MAX_VALUE)) return false;
+
+        String pattern = spec.optString("rom", null);
+        return pattern == null || Pattern.compile(pattern).matcher(rom).find();
+    }
+
+    /**
+     * Intents from "package/.Class" strings, or objects of component,
+     * action and data.
+     */
+    private static List<Intent> toIntents(JSONArray specs) {
+        if (specs == null) return Collections.emptyList();
+
+        List<Intent> intents = new ArrayList<>(specs.length());
+        for (int i = 0; i < specs.length(); i++) {
+            JSONObject spec = specs.optJSONObject(i);
+            String component = spec != null ? spec.optString("component", null) : specs.optString(i);
+
+            Intent intent = new Intent();
+            if (component != null) {
+                ComponentName name = ComponentName.unflattenFromString(component);
+                if (name == null) continue;
+                intent.setComponent(name);
+            }
+            if (spec != null && spec.has("action")) {
+                intent.setAction(spec.optString("action"));
+            }
+            if (spec != null && spec.has("data")) {
+                intent.setData(Uri.parse(spec.optString("data")));
+            }
+            intents.add(intent);
+        }
+        return intents;
+    }
+
+    private static String readResource(Context context) throws Exception {
+        Resources res = context.getResources();
+        int id = res.getIdentifier(RESOURCE, "raw", context.getPackageName());
+        if (id == 0) throw new Resources.NotFoundException(RESOURCE);
+
+        try (InputStream in = res.openRawResource(id)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
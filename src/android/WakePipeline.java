@@ -0,0 +1,298 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.view.Window;
+
+import androidx.core.content.ContextCompat;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.view.WindowManager.LayoutParams.FLAG_ALLOW_LOCK_WHILE_SCREEN_ON;
+import static android.view.WindowManager.LayoutParams.FLAG_DISMISS_KEYGUARD;
+import static android.view.WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED;
+import static android.view.WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON;
+
+/**
+ * Wakes the screen and, if requested, shows the app over the keyguard and
+ * asks the user to dismiss it.
+ *
+ * Stages, each timed in ms since the request:
+ *
+ *   screenOn   the screen is on
+ *   visible    the activity is started (unlock only)
+ *   unlocked   the keyguard is dismissed (unlock only)
+ *
+ * The callbacks complete once the pipeline is done, with
+ * { result, stages, total }. The result is "success", or passed to the
+ * error callback: "cancelled" by the user, "error" or "timeout".
+ * Requests arriving meanwhile join the running pipeline.
+ */
+final class WakePipeline {
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private final Activity activity;
+    private final Runnable wake;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable timeout = () -> finish("timeout");
+
+    private final List<CallbackContext> callbacks = new ArrayList<>();
+
+    private JSONObject stages;
+    private long startedAt;
+    private boolean running = false;
+    private boolean unlock, screenOn, visible, launched, dismissing;
+
+    // Set while the window is shown over the keyguard, see onHidden
+    private boolean windowPrepared = false;
+
+    private BroadcastReceiver screenReceiver;
+
+    /**
+     * @param activity The Cordova activity.
+     * @param wake     Turns the screen on, e.g. through a wake lock.
+     */
+    WakePipeline(Activity activity, Runnable wake) {
+        this.activity = activity;
+        this.wake = wake;
+    }
+
+    /**
+     * Run the pipeline, or join the running one.
+     *
+     * @param unlock    Also show the app and dismiss the keyguard.
+     * @param isVisible If the activity is started.
+     */
+    void request(CallbackContext callback, boolean unlock, boolean isVisible) {
+        handler.post(() -> {
+            callbacks.add(callback);
+
+            if (!running) {
+                start(unlock, isVisible);
+            } else if (unlock && !this.unlock) {
+                this.unlock = true;
+                prepareWindow();
+                advance();
+            }
+        });
+    }
+
+    /**
+     * Called once the activity is started.
+     */
+    void onVisible() {
+        handler.post(() -> {
+            if (!running || visible) return;
+
+            visible = true;
+            mark("visible");
+            advance();
+        });
+    }
+
+    /**
+     * Called once the activity is stopped, no longer shows it over the
+     * keyguard. A running pipeline does so once it finishes.
+     */
+    void onHidden() {
+        handler.post(() -> {
+            visible = false;
+            if (!running) clearWindow();
+        });
+    }
+
+    private void start(boolean unlock, boolean isVisible) {
+        running = true;
+        startedAt = SystemClock.elapsedRealtime();
+        stages = new JSONObject();
+        this.unlock = unlock;
+        visible = isVisible;
+        screenOn = false;
+        launched = false;
+        dismissing = false;
+
+        handler.postDelayed(timeout, TIMEOUT_MS);
+
+        PowerManager pm = (PowerManager) activity.getSystemService(Context.POWER_SERVICE);
+        if (pm == null || pm.isInteractive()) {
+            screenOn = true;
+            mark("screenOn");
+        } else {
+            registerScreenReceiver();
+            wake.run();
+        }
+
+        if (unlock) prepareWindow();
+        advance();
+    }
+
+    private void advance() {
+        if (!running) return;
+
+        // Shown over the keyguard the activity turns the screen on itself
+        if (unlock && !visible && !launched) {
+            launched = true;
+            ForegroundLauncher.bringToFront(activity);
+        }
+
+        if (!screenOn) return;
+
+        if (!unlock) {
+            finish("success");
+            return;
+        }
+        if (visible && !dismissing) {
+            dismissing = true;
+            dismissKeyguard();
+        }
+    }
+
+    /**
+     * Show the activity over the keyguard and let it turn the screen on.
+     */
+    private void prepareWindow() {
+        windowPrepared = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            activity.setShowWhenLocked(true);
+            activity.setTurnScreenOn(true);
+        } else {
+            setLegacyFlags(true);
+        }
+    }
+
+    /**
+     * Undo prepareWindow, does nothing if not prepared.
+     */
+    private void clearWindow() {
+        if (!windowPrepared) return;
+
+        windowPrepared = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            activity.setShowWhenLocked(false);
+            activity.setTurnScreenOn(false);
+        } else {
+            setLegacyFlags(false);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void setLegacyFlags(boolean add) {
+        Window window = activity.getWindow();
+        if (window == null) return;
+
+        int flags = FLAG_ALLOW_LOCK_WHILE_SCREEN_ON | FLAG_SHOW_WHEN_LOCKED
+                | FLAG_TURN_SCREEN_ON | FLAG_DISMISS_KEYGUARD;
+        if (add) {
+            window.addFlags(flags);
+        } else {
+            window.clearFlags(flags);
+        }
+    }
+
+    private void dismissKeyguard() {
+        KeyguardManager km = (KeyguardManager) activity.getSystemService(Context.KEYGUARD_SERVICE);
+        if (km == null || !km.isKeyguardLocked()) {
+            mark("unlocked");
+            finish("success");
+            return;
+        }
+
+        // Dismissed by FLAG_DISMISS_KEYGUARD if not secure, nothing to wait for
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            finish("success");
+            return;
+        }
+
+        km.requestDismissKeyguard(activity, new KeyguardManager.KeyguardDismissCallback() {
+            @Override
+            public void onDismissSucceeded() {
+                mark("unlocked");
+                finish("success");
+            }
+
+            @Override
+            public void onDismissCancelled() {
+                finish("cancelled");
+            }
+
+            @Override
+            public void onDismissError() {
+                finish("error");
+            }
+        });
+    }
+
+    private void registerScreenReceiver() {
+        screenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!running || screenOn) return;
+
+                screenOn = true;
+                mark("screenOn");
+                advance();
+            }
+        };
+        // Protected system broadcast, not exported still receives it
+        ContextCompat.registerReceiver(activity.getApplicationContext(), screenReceiver,
+                new IntentFilter(Intent.ACTION_SCREEN_ON), ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    private void unregisterScreenReceiver() {
+        if (screenReceiver == null) return;
+
+        try {
+            activity.getApplicationContext().unregisterReceiver(screenReceiver);
+        } catch (Exception ignored) {}
+        screenReceiver = null;
+    }
+
+    private void mark(String stage) {
+        try {
+            stages.put(stage, SystemClock.elapsedRealtime() - startedAt);
+        } catch (JSONException ignored) {}
+    }
+
+    private void finish(String result) {
+        if (!running) return;
+
+        running = false;
+        handler.removeCallbacks(timeout);
+        unregisterScreenReceiver();
+
+        // Hidden meanwhile, onHidden skipped it while running
+        if (!visible) clearWindow();
+
+        JSONObject payload = new JSONObject();
+        try {
+            payload.put("result", result);
+            payload.put("stages", stages);
+            payload.put("total", SystemClock.elapsedRealtime() - startedAt);
+        } catch (JSONException ignored) {}
+
+        for (CallbackContext callback : callbacks) {
+            if ("success".equals(result)) {
+                callback.success(payload);
+            } else {
+                callback.error(payload);
+            }
+        }
+        callbacks.clear();
+    }
+}
@@ -0,0 +1,51 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Activity;
+import android.os.Looper;
+import android.view.View;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Deferred, run-once warm-up tasks.
+ *
+ * Tasks are queued behind the next frame of the activity and only run
+ * once the main looper becomes idle, so they never compete with app start.
+ * The work itself is handed to the given executor to keep binder calls
+ * off the UI thread.
+ */
+final class Warmup {
+
+    // Keys of the tasks already scheduled within this process
+    private static final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+
+    private Warmup() {}
+
+    /**
+     * Schedule the task once per process.
+     *
+     * @param activity The activity whose first frame to wait for.
+     * @param key      Unique name of the task.
+     * @param executor Executor to run the task on.
+     * @param task     The warm-up work.
+     */
+    static void schedule(Activity activity, String key, Executor executor, Runnable task) {
+        if (activity == null || !scheduled.add(key)) return;
+
+        View decor = activity.getWindow().getDecorView();
+        // post() runs after the pending traversal, i.e. after the first frame
+        decor.post(() -> Looper.myQueue().addIdleHandler(() -> {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    android.util.Log.w("BackgroundMode", "Warm-up failed: " + key, e);
+                }
+            });
+            // One shot
+            return false;
+        }));
+    }
+}
@@ -0,0 +1,207 @@
+package de.einfachhans.BackgroundMode;
+
+import android.os.Build;
+import android.view.View;
+import android.webkit.WebView;
+
+import java.lang.reflect.Method;
+
+/**
+ * Engine specific keep-alive of the Cordova WebView.
+ *
+ * The engine is detected once from the class of the engine's view, so the
+ * keep-alive cycle neither probes classes nor throws. Engines only known
+ * at runtime are driven through reflection with the methods looked up once.
+ */
+final class WebViewAdapters {
+
+    interface Adapter {
+        /**
+         * Name of the engine, for diagnostics.
+         */
+        String getName();
+
+        /**
+         * The app went to background.
+         */
+        void onBackground(View view);
+
+        /**
+         * The app came back to foreground.
+         */
+        void onForeground(View view);
+
+        /**
+         * Keep the engine running while its window is hidden.
+         */
+        void keepAlive(View view);
+    }
+
+    private static final String CROSSWALK_VIEW = "org.crosswalk.engine.XWalkCordovaView";
+    private static final String GECKO_VIEW = "org.mozilla.geckoview.GeckoView";
+
+    private WebViewAdapters() {}
+
+    /**
+     * Returns the adapter for the engine owning the view.
+     */
+    static Adapter detect(View view) {
+        if (view instanceof WebView) {
+            return new SystemAdapter();
+        }
+
+        Class<?> crosswalk = findClass(view, CROSSWALK_VIEW);
+        if (crosswalk != null) {
+            return new CrosswalkAdapter(crosswalk);
+        }
+
+        Class<?> gecko = findClass(view, GECKO_VIEW);
+        if (gecko != null) {
+            return new GeckoAdapter(gecko);
+        }
+
+        return new GenericAdapter();
+    }
+
+    /**
+     * Returns the class or super class of the view with that name.
+     */
+    private static Class<?> findClass(View view, String name) {
+        if (view == null) return null;
+
+        for (Class<?> cls = view.getClass(); cls != null; cls = cls.getSuperclass()) {
+            if (name.equals(cls.getName())) return cls;
+        }
+        return null;
+    }
+
+    private static Method findMethod(Class<?> cls, String name, Class<?>... params) {
+        try {
+            return cls.getMethod(name, params);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Any engine, only the view's visibility is known.
+     */
+    private static class GenericAdapter implements Adapter {
+        @Override
+        public String getName() {
+            return "generic";
+        }
+
+        @Override
+        public void onBackground(View view) { }
+
+        @Override
+        public void onForeground(View view) { }
+
+        @Override
+        public void keepAlive(View view) {
+            view.dispatchWindowVisibilityChanged(View.VISIBLE);
+        }
+    }
+
+    /**
+     * The system WebView.
+     *
+     * Keeps the JS timers running and, from Android 8, the renderer
+     * process at its priority while the app is hidden.
+     */
+    private static final class SystemAdapter extends GenericAdapter {
+        private int savedPriority = -1;
+        private boolean savedWaived;
+
+        @Override
+        public String getName() {
+            return "system";
+        }
+
+        @Override
+        public void onBackground(View view) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+
+            WebView webView = (WebView) view;
+            savedPriority = webView.getRendererRequestedPriority();
+            savedWaived = webView.getRendererPriorityWaivedWhenNotVisible();
+            webView.setRendererPriorityPolicy(WebView.RENDERER_PRIORITY_IMPORTANT, false);
+        }
+
+        @Override
+        public void onForeground(View view) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || savedPriority < 0) return;
+
+            ((WebView) view).setRendererPriorityPolicy(savedPriority, savedWaived);
+            savedPriority = -1;
+        }
+
+        @Override
+        public void keepAlive(View view) {
+            super.keepAlive(view);
+            // Undoes pauseTimers of the Cordova activity, applies to all WebViews
+            ((WebView) view).resumeTimers();
+        }
+    }
+
+    /**
+     * The Crosswalk engine, XWalkCordovaView.onShow resumes its timers.
+     */
+    private static final class CrosswalkAdapter extends GenericAdapter {
+        private final Method onShow;
+
+        CrosswalkAdapter(Class<?> cls) {
+            onShow = findMethod(cls, "onShow");
+        }
+
+        @Override
+        public String getName() {
+            return "crosswalk";
+        }
+
+        @Override
+        public void keepAlive(View view) {
+            if (onShow == null) {
+                super.keepAlive(view);
+                return;
+            }
+            try {
+                onShow.invoke(view);
+            } catch (Exception e) {
+                super.keepAlive(view);
+            }
+        }
+    }
+
+    /**
+     * GeckoView style engines, keeps the view's session active.
+     */
+    private static final class GeckoAdapter extends GenericAdapter {
+        private final Method getSession;
+        private final Method setActive;
+
+        GeckoAdapter(Class<?> cls) {
+            getSession = findMethod(cls, "getSession");
+            setActive = getSession != null
+                    ? findMethod(getSession.getReturnType(), "setActive", boolean.class)
+                    : null;
+        }
+
+        @Override
+        public String getName() {
+            return "gecko";
+        }
+
+        @Override
+        public void keepAlive(View view) {
+            super.keepAlive(view);
+            if (setActive == null) return;
+
+            try {
+                Object session = getSession.invoke(view);
+                if (session != null) setActive.invoke(session, true);
+            } catch (Exception ignored) {}
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package de.einfachhans.BackgroundMode;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.robolectric.Robolectric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fires storms of enable, disable, configure, recover and foreground
+ * commands from many threads at the plugin, while the ServiceDriver runs
+ * the service's lifecycle like the system. After each storm it checks:
+ *
+ *   - the last enable or disable wins, whatever was still pending
+ *   - isEnabled, the service's running flag and the service agree
+ *   - no command created a plain started service
+ *
+ * Latencies of the plugin's execute calls are recorded per action.
+ */
+final class LifecycleHarness {
+
+    static final String[] ACTIONS = { "enable", "disable", "configure", "recover", "foreground" };
+
+    private final ServiceDriver driver = new ServiceDriver();
+    private final ExecutorService bridge = Executors.newCachedThreadPool();
+    private final BackgroundMode plugin = new BackgroundMode();
+
+    // Latencies in ns per action, see ACTIONS
+    private final long[][] latencies = new long[ACTIONS.length][];
+    private final int[] counts = new int[ACTIONS.length];
+
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private long stormNanos = 0;
+    private int rounds = 0;
+
+    LifecycleHarness() {
+        ServiceDriver.RecordingActivity activity =
+                Robolectric.buildActivity(ServiceDriver.RecordingActivity.class).setup().get();
+        activity.driver = driver;
+
+        CordovaInterface cordova = mock(CordovaInterface.class);
+        when(cordova.getActivity()).thenReturn(activity);
+        when(cordova.getContext()).thenReturn(activity);
+        when(cordova.getThreadPool()).thenReturn(bridge);
+        when(cordova.hasPermission(anyString())).thenReturn(true);
+
+        plugin.privateInitialize("BackgroundMode", cordova, mock(CordovaWebView.class),
+                new CordovaPreferences());
+
+        for (int i = 0; i < ACTIONS.length; i++) {
+            latencies[i] = new long[1024];
+        }
+    }
+
+    ServiceDriver getDriver() {
+        return driver;
+    }
+
+    /**
+     * Run one storm and check the invariants, on the main thread.
+     *
+     * @param threads Number of concurrent callers.
+     * @param ops     Commands per caller.
+     */
+    void runRound(int threads, int ops, long seed) throws Exception {
+        ExecutorService storm = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<long[][]>> results = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(seed + t);
+            results.add(storm.submit(() -> {
+                long[][] samples = new long[ACTIONS.length][ops];
+                int[] sampled = new int[ACTIONS.length];
+                go.await();
+
+                for (int i = 0; i < ops; i++) {
+                    int action = random.nextInt(ACTIONS.length);
+                    long start = System.nanoTime();
+                    send(action, i);
+                    samples[action][sampled[action]++] = System.nanoTime() - start;
+                }
+                for (int a = 0; a < ACTIONS.length; a++) {
+                    samples[a] = Arrays.copyOf(samples[a], sampled[a]);
+                }
+                return samples;
+            }));
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+
+        // The system applies the requests while the callers go on
+        while (!isDone(results)) {
+            driver.drain();
+        }
+        stormNanos += System.nanoTime() - start;
+        storm.shutdown();
+
+        for (Future<long[][]> result : results) {
+            record(result.get());
+        }
+
+        // Issued before the pending requests are applied
+        boolean enable = new Random(seed).nextBoolean();
+        send(enable ? 0 : 1, -1);
+        driver.drain();
+
+        rounds++;
+        checkInvariants(enable);
+    }
+
+    void shutdown() {
+        send(1, -1);
+        driver.drain();
+        driver.shutdown();
+        bridge.shutdownNow();
+    }
+
+    /**
+     * Throughput and latency percentiles of the recorded commands.
+     */
+    String report() {
+        StringBuilder out = new StringBuilder();
+        long total = 0;
+        for (int count : counts) total += count;
+
+        out.append(String.format("rounds %d, commands %d, %.0f commands/s, errors %d%n",
+                rounds, total, total / (stormNanos / 1e9), errors.get()));
+        out.append(String.format("service created %d, destroyed %d, commands %d%n",
+                driver.creates, driver.destroys, driver.commands));
+
+        for (int a = 0; a < ACTIONS.length; a++) {
+            long[] sorted = Arrays.copyOf(latencies[a], counts[a]);
+            Arrays.sort(sorted);
+            out.append(String.format("%-10s n=%-7d p50=%6.3fms p99=%6.3fms p99.9=%6.3fms max=%6.3fms%n",
+                    ACTIONS[a], sorted.length,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), percentile(sorted, 1)));
+        }
+        return out.toString();
+    }
+
+    int getErrors() {
+        return errors.get();
+    }
+
+    private void checkInvariants(boolean enabled) throws Exception {
+        assertEquals("last command wins", enabled, driver.isRunning());
+        assertEquals("service flag matches service", driver.isRunning(), ForegroundService.isRunning());
+        assertEquals("isEnabled matches service", driver.isRunning(), isEnabled());
+        assertEquals("no plain started service", 0, driver.plainCreates);
+    }
+
+    private boolean isEnabled() throws Exception {
+        ResultCallback callback = new ResultCallback();
+        plugin.execute("isEnabled", new JSONArray(), callback);
+        return "1".equals(callback.result.getMessage());
+    }
+
+    private void send(int action, int seq) {
+        try {
+            switch (ACTIONS[action]) {
+                case "enable":
+                case "disable":
+                    plugin.execute(ACTIONS[action], new JSONArray(), new ResultCallback());
+                    break;
+                case "configure":
+                    JSONObject settings = new JSONObject().put("text", "Update " + seq);
+                    plugin.execute("configure", new JSONArray().put(settings).put(true), new ResultCallback());
+                    break;
+                case "recover":
+                    driver.system(ForegroundService.ACTION_RECOVER);
+                    break;
+                case "foreground":
+                    driver.system(ForegroundService.ACTION_FOREGROUND);
+                    break;
+            }
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        }
+    }
+
+    private synchronized void record(long[][] samples) {
+        for (int a = 0; a < ACTIONS.length; a++) {
+            int needed = counts[a] + samples[a].length;
+            if (needed > latencies[a].length) {
+                latencies[a] = Arrays.copyOf(latencies[a], Math.max(needed, latencies[a].length * 2));
+            }
+            System.arraycopy(samples[a], 0, latencies[a], counts[a], samples[a].length);
+            counts[a] = needed;
+        }
+    }
+
+    private static boolean isDone(List<Future<long[][]>> results) {
+        for (Future<long[][]> result : results) {
+            if (!result.isDone()) return false;
+        }
+        return true;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Keeps the result, counts errors of the plugin.
+     */
+    private final class ResultCallback extends CallbackContext {
+        volatile PluginResult result;
+
+        ResultCallback() {
+            super("harness", null);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            result = pluginResult;
+            if (pluginResult.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.einfachhans.BackgroundMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Storms of lifecycle commands for soak.minutes, checking that heap and
+ * threads stay flat and destroyed services get collected. Skipped unless
+ * run with -Psoak.minutes=N.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class LifecycleSoakTest {
+
+    private static final long MAX_HEAP_GROWTH = 64L * 1024 * 1024;
+    private static final int MAX_THREAD_GROWTH = 4;
+
+    // Rounds between two samples of heap and threads
+    private static final int SAMPLE_ROUNDS = 25;
+
+    private LifecycleHarness harness;
+
+    @Before
+    public void setUp() {
+        harness = new LifecycleHarness();
+    }
+
+    @After
+    public void tearDown() {
+        harness.shutdown();
+    }
+
+    @Test
+    public void soak() throws Exception {
+        long minutes = Long.getLong("soak.minutes", 0);
+        assumeTrue("soak.minutes not set", minutes > 0);
+
+        long deadline = System.nanoTime() + minutes * 60_000_000_000L;
+
+        // Warm up so lazily created pools and caches are in the baseline
+        int round = 0;
+        for (; round < SAMPLE_ROUNDS; round++) {
+            harness.runRound(8, 250, round);
+        }
+        long baseHeap = usedHeap();
+        int baseThreads = Thread.activeCount();
+        long maxHeap = baseHeap;
+        int maxThreads = baseThreads;
+
+        while (System.nanoTime() < deadline) {
+            harness.runRound(8, 250, round++);
+            if (round % SAMPLE_ROUNDS != 0) continue;
+
+            long heap = usedHeap();
+            int threads = Thread.activeCount();
+            maxHeap = Math.max(maxHeap, heap);
+            maxThreads = Math.max(maxThreads, threads);
+            System.out.printf("round %d: heap %d KB, threads %d%n", round, heap / 1024, threads);
+        }
+
+        System.out.print(harness.report());
+        assertEquals("plugin errors", 0, harness.getErrors());
+
+        long heapGrowth = usedHeap() - baseHeap;
+        assertTrue("heap grew by " + heapGrowth / 1024 + " KB, peak " + maxHeap / 1024 + " KB",
+                heapGrowth < MAX_HEAP_GROWTH);
+
+        int threadGrowth = Thread.activeCount() - baseThreads;
+        assertTrue("threads grew by " + threadGrowth + ", peak " + maxThreads,
+                threadGrowth <= MAX_THREAD_GROWTH);
+
+        int live = harness.getDriver().countLiveDestroyed();
+        assertTrue(live + " destroyed services still reachable", live <= 1);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,61 @@
+package de.einfachhans.BackgroundMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Short storms of lifecycle commands, run with every build.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class LifecycleStressTest {
+
+    private LifecycleHarness harness;
+
+    @Before
+    public void setUp() {
+        harness = new LifecycleHarness();
+    }
+
+    @After
+    public void tearDown() {
+        harness.shutdown();
+    }
+
+    @Test
+    public void lastCommandWinsUnderStorm() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            harness.runRound(8, 250, round);
+        }
+
+        System.out.print(harness.report());
+        assertEquals("plugin errors", 0, harness.getErrors());
+    }
+
+    @Test
+    public void alternatingEnableDisable() throws Exception {
+        // One caller, so every stop is still pending when the next start comes
+        for (int round = 0; round < 50; round++) {
+            harness.runRound(1, 10, 1000 + round);
+        }
+
+        assertEquals("plugin errors", 0, harness.getErrors());
+    }
+
+    @Test
+    public void destroyedServicesAreCollected() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            harness.runRound(4, 100, 2000 + round);
+        }
+        harness.shutdown();
+
+        // The last destroyed instance may still be referenced by the looper
+        assertEquals(true, harness.getDriver().countLiveDestroyed() <= 1);
+    }
+}
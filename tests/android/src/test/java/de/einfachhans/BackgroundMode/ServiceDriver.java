@@ -0,0 +1,168 @@
+package de.einfachhans.BackgroundMode;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Looper;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Plays the system's part for the ForegroundService: the start and stop
+ * requests of the plugin are queued in the order they were made, and
+ * applied to the service's lifecycle on the main thread, delayed like the
+ * system delivers them.
+ */
+final class ServiceDriver {
+
+    enum Kind {
+        // startForegroundService and startService of the plugin
+        FOREGROUND, START,
+        // stopService of the plugin
+        STOP,
+        // Commands of the notification, only reach a running service
+        SYSTEM
+    }
+
+    static final class Request {
+        final Kind kind;
+        final Intent intent;
+
+        Request(Kind kind, Intent intent) {
+            this.kind = kind;
+            this.intent = intent;
+        }
+    }
+
+    /**
+     * The activity handed to the plugin, records its service requests.
+     */
+    public static class RecordingActivity extends Activity {
+        ServiceDriver driver;
+
+        @Override
+        public ComponentName startForegroundService(Intent intent) {
+            driver.requests.add(new Request(Kind.FOREGROUND, intent));
+            return intent.getComponent();
+        }
+
+        @Override
+        public ComponentName startService(Intent intent) {
+            driver.requests.add(new Request(Kind.START, intent));
+            return intent.getComponent();
+        }
+
+        @Override
+        public boolean stopService(Intent intent) {
+            driver.requests.add(new Request(Kind.STOP, intent));
+            return true;
+        }
+    }
+
+    final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+
+    private final List<WeakReference<ForegroundService>> destroyed = new ArrayList<>();
+
+    private ServiceController<ForegroundService> controller;
+    private int startId = 0;
+
+    int creates = 0;
+    int destroys = 0;
+    int commands = 0;
+    // Services created by a plain startService, rejected from background
+    int plainCreates = 0;
+
+    /**
+     * Deliver a command of the notification, e.g. ACTION_RECOVER.
+     */
+    void system(String action) {
+        Intent intent = new Intent(RuntimeEnvironment.getApplication(), ForegroundService.class);
+        requests.add(new Request(Kind.SYSTEM, intent.setAction(action)));
+    }
+
+    /**
+     * Apply the queued requests, must run on the main thread.
+     */
+    void drain() {
+        Request request;
+        while ((request = requests.poll()) != null) {
+            apply(request);
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+
+        if (controller != null && shadowOf(controller.get()).isStoppedBySelf()) {
+            destroy();
+        }
+    }
+
+    boolean isRunning() {
+        return controller != null;
+    }
+
+    /**
+     * Destroyed services still reachable after a few collections.
+     */
+    int countLiveDestroyed() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+
+        int live = 0;
+        for (WeakReference<ForegroundService> ref : destroyed) {
+            if (ref.get() != null) live++;
+        }
+        destroyed.removeIf(ref -> ref.get() == null);
+        return live;
+    }
+
+    /**
+     * Drop the pending requests and destroy the service.
+     */
+    void shutdown() {
+        requests.clear();
+        if (controller != null) destroy();
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private void apply(Request request) {
+        switch (request.kind) {
+            case STOP:
+                if (controller != null) destroy();
+                return;
+            case SYSTEM:
+                if (controller == null) return;
+                break;
+            case START:
+                if (controller == null) plainCreates++;
+                break;
+            default:
+                break;
+        }
+
+        if (controller == null) {
+            controller = Robolectric.buildService(ForegroundService.class, request.intent).create();
+            creates++;
+        }
+        controller.withIntent(request.intent).startCommand(0, ++startId);
+        commands++;
+    }
+
+    private void destroy() {
+        ForegroundService service = controller.get();
+        controller.destroy();
+        controller = null;
+        destroyed.add(new WeakReference<>(service));
+        destroys++;
+    }
+}
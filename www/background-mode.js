@@ -45,16 +45,19 @@ exports._pluginInitialize = function()
 			exports._isActive = true;
 			// reset runtime settings to defaults
 			exports._settings = exports._mergeObjects({}, exports._defaults);
+			exports._startHeartbeat();
 		});
 		this.on('deactivate', function() {
 			exports._isActive = false;
 			// reset runtime settings to unset
 			exports._settings = {};
+			exports._stopHeartbeat();
 		});
 		this.on('failure', function() {
 			exports._isActive = false;
 			// reset runtime settings to unset
 			exports._settings = {};
+			exports._stopHeartbeat();
 		});
 	}
 };
@@ -81,7 +84,9 @@ exports._defaults =
     bigText: false,
     resume:  true,
     color:   undefined,
-    icon:    undefined
+    icon:    undefined,
+    channel: undefined,
+    keepAlive: 'visibility'
 };
 
 /**
@@ -232,6 +237,179 @@ exports.setEnabled = function (enable, success, error)
     }
 };
 
+/**
+ * Choose what happens to the background mode when the activity is
+ * destroyed (Android only). The choice is persisted.
+ *
+ *   'stop'   stop the service, kill the process before Android 8 (default)
+ *   'keep'   keep the service running, the next launch resumes warm
+ *   'detach' like keep, and hide the task from the recents list
+ *   'kill'   stop the service and kill the process
+ *
+ * @param [ String ] policy One of the policies above.
+ * @param [ Function ] success Callback on success
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.setDestroyPolicy = function (policy, success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'destroyPolicy', [policy]);
+    }
+};
+
+/**
+ * Get the startup cost of cold starts and warm resumes (Android only).
+ *
+ * @param [ Function ] success Callback with
+ *                             { policy, coldStart, lastStart, lastStartWarm, warmResumes, saved } in ms.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getLifecycleStats = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'lifecycleStats', []);
+    }
+};
+
+/**
+ * Emit trace sections of the plugin's hot paths to Perfetto/systrace
+ * (Android only).
+ *
+ * @param [ Boolean ] enabled Set to false to turn the sections off.
+ * @param [ Boolean ] record  Also keep them in an on-device ring buffer,
+ *                            see exportTrace.
+ *
+ * @return [ Void ]
+ */
+exports.setTracing = function (enabled, record)
+{
+    if (this._isAndroid) {
+        cordova.exec(null, null, 'BackgroundMode', 'tracing', [enabled !== false, record === true]);
+    }
+};
+
+/**
+ * Write the recorded trace sections to a file in the Chrome trace event
+ * format and clear the ring buffer (Android only).
+ *
+ * @param [ Function ] success Callback with the absolute path of the file.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.exportTrace = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'traceExport', []);
+    }
+};
+
+/**
+ * Get the memory pressure reported by the system (Android only).
+ *
+ * @param [ Function ] success Callback with
+ *                             { trims, critical, lastLevel, lastTrim, released },
+ *                             lastTrim in ms ago, released in bytes.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getTrimStats = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'trimStats', []);
+    }
+};
+
+/**
+ * Get the CPU time spent in background per keep-alive strategy (Android only).
+ *
+ * @param [ Function ] success Callback with
+ *                             { current, audio, visibility, none }, each strategy
+ *                             { time, cpu, cpuPerMinute, cycles } in ms,
+ *                             audio also with the underruns of the track.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getKeepAliveStats = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'keepAliveStats', []);
+    }
+};
+
+/**
+ * Register a script to run headless once the activity is destroyed while
+ * background mode is enabled (Android only). The script runs in its own
+ * WebView without Cordova, it can call BackgroundModeHeadless.post(string)
+ * to hand records to the app (see drainRecords) and
+ * BackgroundModeHeadless.log(string).
+ *
+ * @param [ String ] script Path relative to www/, null to disable.
+ * @param [ Function ] success Callback on success
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.setHeadlessScript = function (script, success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'headless', [script || null]);
+    }
+};
+
+/**
+ * Let rules turn the background mode on and off (Android only).
+ * The activate, deactivate and failure events are fired on each change.
+ *
+ * @param [ Object ] spec { mode: 'all'|'any', rules: [...] }, see README.
+ * @param [ Function ] success Callback on success
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.setActivationRules = function (spec, success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'setRules', [spec]);
+    }
+};
+
+/**
+ * Remove the activation rules, the mode stays in its current state.
+ *
+ * @param [ Function ] success Callback on success
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.clearActivationRules = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'clearRules', []);
+    }
+};
+
+/**
+ * Get the result of the activation rules and the device state they see.
+ *
+ * @param [ Function ] success Callback with { active, charging, battery, screenOn, connected, metered }
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getActivationRulesState = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'rulesState', []);
+    }
+};
+
 /**
  * Enable GPS-tracking in background (Android).
  *
@@ -274,6 +452,40 @@ exports.openAppStartSettings = function (options, success, error)
     }
 };
 
+/**
+ * Opens the manufacturer's battery settings of the app if the device's
+ * vendor profile knows them, else the system's battery optimizations
+ * (Android only).
+ *
+ * @param [ Function ] success Callback on success
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.openVendorBatterySettings = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundModeExt', 'vendorBattery', []);
+    }
+};
+
+/**
+ * Get the vendor profile matched for the device (Android only).
+ *
+ * @param [ Function ] success Callback with
+ *                             { id, autoStart, battery, keepAliveInterval, serviceType },
+ *                             autoStart and battery are the number of known screens.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getVendorProfile = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundModeExt', 'vendorProfile', []);
+    }
+};
+
 /**
  * Move app to background (Android only).
  *
@@ -298,6 +510,25 @@ exports.moveToForeground = function()
     }
 };
 
+/**
+ * Get the latencies of moveToForeground, measured from the request
+ * to the first frame drawn afterwards (Android only).
+ *
+ * @param [ Function ] success Callback with { launches, last, mean } in ms.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getForegroundStats = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'foregroundStats', []);
+    }
+    else if (success) {
+        success(undefined);
+    }
+};
+
 /**
  * Exclude the app from the recent tasks list (Android only).
  *
@@ -355,24 +586,439 @@ exports.isScreenOff = function (success)
 /**
  * Wake up the device.
  *
+ * @param [ Function ] success Callback once the screen is on, with
+ *                             { result, stages: { screenOn }, total } in ms.
+ * @param [ Function ] error Callback with the same report on timeout.
+ *
+ * @return [ Void ]
+ */
+exports.wakeUp = function(success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundModeExt', 'wakeup', []);
+    }
+};
+
+/**
+ * Wake up the device, show the app and ask to dismiss the keyguard.
+ *
+ * @param [ Function ] success Callback once unlocked, with
+ *                             { result, stages: { screenOn, visible, unlocked }, total } in ms.
+ * @param [ Function ] error Callback with the same report, result is
+ *                           'cancelled', 'error' or 'timeout'.
+ *
+ * @return [ Void ]
+ */
+exports.unlock = function(success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundModeExt', 'unlock', []);
+    }
+};
+
+/**
+ * @private
+ *
+ * Heartbeat settings, see setHeartbeat.
+ */
+exports._heartbeat =
+{
+    interval:  10000,
+    threshold: 150000
+};
+
+/**
+ * Configure the heartbeat used by the native side to detect if the
+ * WebView stopped executing JS while in background (Android only).
+ * The 'stall' event is fired with the stall duration in ms once the
+ * WebView responds again.
+ *
+ * @param [ Object ] options { interval, threshold } in ms, interval 0 disables.
+ *
+ * @return [ Void ]
+ */
+exports.setHeartbeat = function (options)
+{
+    this._mergeObjects(options, this._heartbeat);
+    this._heartbeat = options;
+
+    if (this._isActive) {
+        this._startHeartbeat();
+    }
+};
+
+/**
+ * @private
+ *
+ * Start to ping the native side.
+ *
+ * @return [ Void ]
+ */
+exports._startHeartbeat = function()
+{
+    this._stopHeartbeat();
+
+    var hb = this._heartbeat;
+    if (!this._isAndroid || !(hb.interval > 0)) return;
+
+    var ping = function() {
+        cordova.exec(null, null, 'BackgroundMode', 'heartbeat', [hb.threshold]);
+    };
+    ping();
+    this._heartbeatTimer = setInterval(ping, hb.interval);
+};
+
+/**
+ * @private
+ *
+ * Stop to ping the native side.
+ *
  * @return [ Void ]
  */
-exports.wakeUp = function()
+exports._stopHeartbeat = function()
 {
+    if (this._heartbeatTimer) {
+        clearInterval(this._heartbeatTimer);
+        this._heartbeatTimer = undefined;
+    }
+};
+
+/**
+ * @private
+ *
+ * Counter to generate ids of native timers.
+ */
+exports._timerSeq = 0;
+
+/**
+ * Run the function periodically from a native timer while background mode
+ * is enabled (Android only). Unlike setInterval, the native timer is not
+ * throttled by the backgrounded WebView.
+ *
+ * @param [ Function ] fn Callback invoked with { id, tick, late, flush } on each tick.
+ * @param [ Number ] interval Interval in ms, at least 1000.
+ * @param [ Object ] options { window, network } window is the allowed delay in ms
+ *                           used to share wakeups with other timers, defaults to
+ *                           10% of interval. network ('any', 'connected' or
+ *                           'unmetered') holds ticks back until a suitable
+ *                           network appears, then fires them with flush = true.
+ * @param [ Function ] error Callback invoked once the timer is stopped by the native side.
+ *
+ * @return [ String ] The id to pass to cancelTimer.
+ */
+exports.scheduleTimer = function (fn, interval, options, error)
+{
+    var id      = 'timer' + (++this._timerSeq),
+        window  = options && options.window >= 0 ? options.window : Math.floor(interval / 10),
+        network = (options && options.network) || 'any';
+
     if (this._isAndroid) {
-        cordova.exec(null, null, 'BackgroundModeExt', 'wakeup', []);
+        var onTick = function(buffer) {
+            var view = new DataView(buffer);
+            fn({
+                id:    id,
+                tick:  view.getUint32(0, true),
+                late:  view.getUint32(4, true),
+                flush: (view.getUint32(8, true) & 1) !== 0
+            });
+        };
+        cordova.exec(onTick, error, 'BackgroundMode', 'timerStart', [id, interval, window, network]);
     }
+    else {
+        this._browserTimers = this._browserTimers || {};
+        this._browserTimers[id] = setInterval(function() { fn({ id: id }); }, interval);
+    }
+
+    return id;
 };
 
 /**
- * Wake up and unlock the device.
+ * Get the state of the default network as seen by the native side (Android only).
+ * The 'network' event is fired with the same object while background mode is enabled.
+ *
+ * @param [ Function ] success Callback with { connected, metered }
+ * @param [ Function ] error Callback on error
  *
  * @return [ Void ]
  */
-exports.unlock = function()
+exports.getNetworkState = function (success, error)
 {
     if (this._isAndroid) {
-        cordova.exec(null, null, 'BackgroundModeExt', 'unlock', []);
+        cordova.exec(success, error, 'BackgroundMode', 'networkState', []);
+    }
+    else if (success) {
+        success({ connected: navigator.onLine, metered: false });
+    }
+};
+
+/**
+ * Stop a timer registered with scheduleTimer.
+ *
+ * @param [ String ] id The id returned by scheduleTimer.
+ *
+ * @return [ Void ]
+ */
+exports.cancelTimer = function (id)
+{
+    if (this._isAndroid) {
+        cordova.exec(null, null, 'BackgroundMode', 'timerStop', [id]);
+    }
+    else if (this._browserTimers && this._browserTimers[id]) {
+        clearInterval(this._browserTimers[id]);
+        delete this._browserTimers[id];
+    }
+};
+
+/**
+ * Receive batched location updates while background mode is enabled
+ * (Android only). Locations are filtered natively and delivered in bulk,
+ * at most once per maxDelay.
+ *
+ * @param [ Object ] options { interval, maxDelay, minDistance, maxAccuracy, priority }
+ *                           interval and maxDelay in ms, minDistance and
+ *                           maxAccuracy in m, priority 'high', 'balanced' or 'low'.
+ * @param [ Function ] success Callback with an array of
+ *                             { latitude, longitude, time, accuracy, altitude, speed, bearing }
+ * @param [ Function ] error Callback if the updates cannot start.
+ *
+ * @return [ Void ]
+ */
+exports.startLocationUpdates = function (options, success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'locationStart', [options || {}]);
+    }
+};
+
+/**
+ * Stop the location updates, the pending locations are delivered first.
+ *
+ * @return [ Void ]
+ */
+exports.stopLocationUpdates = function ()
+{
+    if (this._isAndroid) {
+        cordova.exec(null, null, 'BackgroundMode', 'locationStop', []);
+    }
+};
+
+/**
+ * Deliver the pending locations now, e.g. once the app is shown.
+ *
+ * @return [ Void ]
+ */
+exports.flushLocationUpdates = function ()
+{
+    if (this._isAndroid) {
+        cordova.exec(null, null, 'BackgroundMode', 'locationFlush', []);
+    }
+};
+
+/**
+ * Get the counters of the location updates (Android only).
+ *
+ * @param [ Function ] success Callback with
+ *                             { active, wakeups, received, accepted, batches }
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getLocationStats = function (success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'locationStats', []);
+    }
+};
+
+/**
+ * Get the status and counters of the background mode (Android only).
+ * Transferred as a compact binary message, see _decodeStatus.
+ *
+ * @param [ Function ] success Callback with the status object.
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getStatus = function (success, error)
+{
+    if (!this._isAndroid) {
+        if (success) success({ enabled: this._isActive });
+        return;
+    }
+
+    var onSuccess = function(buffer) {
+        success(exports._decodeStatus(buffer));
+    };
+
+    cordova.exec(onSuccess, error, 'BackgroundMode', 'status', []);
+};
+
+/**
+ * @private
+ *
+ * Decode the binary status, see StatusCodec.java for the layout.
+ *
+ * @param [ ArrayBuffer ] buffer The encoded status.
+ *
+ * @return [ Object ]
+ */
+exports._decodeStatus = function (buffer)
+{
+    var view  = new DataView(buffer),
+        flags = view.getUint8(1);
+
+    return {
+        version:        view.getUint8(0),
+        enabled:        (flags & 1) !== 0,
+        serviceRunning: (flags & 2) !== 0,
+        stalled:        (flags & 4) !== 0,
+        escalated:      (flags & 8) !== 0,
+        heartbeatAge:   view.getInt32(4, true),
+        stalls:         view.getUint32(8, true),
+        stalledTime:    view.getUint32(12, true),
+        recovers:       view.getUint32(16, true),
+        timerWakeups:   view.getUint32(20, true),
+        pendingRecords: view.getUint32(24, true)
+    };
+};
+
+/**
+ * Drain the records produced by native background work (Android only).
+ * All records are transferred as a single ArrayBuffer.
+ *
+ * @param [ Function ] success Callback with (records, dropped) where records
+ *                             is an Array of Uint8Array views.
+ * @param [ Function ] error Callback on error
+ * @param [ Number ] maxBytes Upper bound of the batch size, 0 for all.
+ *                            A larger first record is returned alone.
+ *
+ * @return [ Void ]
+ */
+exports.drainRecords = function (success, error, maxBytes)
+{
+    if (!this._isAndroid) {
+        if (success) success([], 0);
+        return;
+    }
+
+    var onSuccess = function(buffer) {
+        var view    = new DataView(buffer),
+            count   = view.getUint32(0, true),
+            dropped = view.getUint32(4, true),
+            offset  = 8,
+            records = [];
+
+        for (var i = 0; i < count; i++) {
+            var length = view.getUint32(offset, true);
+            records.push(new Uint8Array(buffer, offset + 4, length));
+            offset += 4 + length;
+        }
+
+        success(records, dropped);
+    };
+
+    cordova.exec(onSuccess, error, 'BackgroundMode', 'drainRecords', [maxBytes || 0]);
+};
+
+/**
+ * Start to profile how far JS timers drift while in background (Android only).
+ * A timer beacon is sent on the given interval, the native side records
+ * the delay per device state (foreground, background, screenOff, doze).
+ *
+ * @param [ Number ] interval Beacon interval in ms, defaults to 1000.
+ *
+ * @return [ Void ]
+ */
+exports.startProfiler = function (interval)
+{
+    if (!this._isAndroid) return;
+
+    this.stopProfiler();
+
+    var seq   = 0,
+        delay = interval > 0 ? interval : 1000;
+
+    var beacon = function() {
+        cordova.exec(null, null, 'BackgroundModeExt', 'beacon', [seq++, delay]);
+        exports._profilerTimer = setTimeout(beacon, delay);
+    };
+    beacon();
+};
+
+/**
+ * Stop the timer beacon of the profiler.
+ *
+ * @return [ Void ]
+ */
+exports.stopProfiler = function()
+{
+    if (this._profilerTimer) {
+        clearTimeout(this._profilerTimer);
+        this._profilerTimer = undefined;
+    }
+};
+
+/**
+ * Get the drift histograms recorded by the profiler (Android only).
+ *
+ * @param [ Function ] success Callback with the report.
+ * @param [ Function ] error Callback on error
+ * @param [ Boolean ] reset Drop the recorded samples afterwards.
+ *
+ * @return [ Void ]
+ */
+exports.getProfilerReport = function (success, error, reset)
+{
+    if (!this._isAndroid) {
+        if (success) success(undefined);
+        return;
+    }
+
+    cordova.exec(success, error, 'BackgroundModeExt', 'profilerReport', []);
+
+    if (reset) {
+        cordova.exec(null, null, 'BackgroundModeExt', 'profilerReset', []);
+    }
+};
+
+/**
+ * Get the state of the notification channel (Android only).
+ * A blocked channel hides the notification of the background mode.
+ *
+ * @param [ Function ] success Callback with { id, enabled, importance, blocked }
+ * @param [ Function ] error Callback on error
+ *
+ * @return [ Void ]
+ */
+exports.getChannelState = function(success, error)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'channelState', []);
+    }
+    else if (success) {
+        success(undefined);
+    }
+};
+
+/**
+ * Check all requirements of the background mode at once (Android only).
+ * The report is cached until the app resumes or a relevant setting changes.
+ *
+ * @param [ Function ] success Callback with { ready, notifications,
+ *                             foregroundService, batteryOptimized, exactAlarms,
+ *                             backgroundRestricted, standbyBucket, autoStart }
+ * @param [ Function ] error Callback on error
+ * @param [ Boolean ] refresh Ignore the cached report.
+ *
+ * @return [ Void ]
+ */
+exports.preflight = function(success, error, refresh)
+{
+    if (this._isAndroid) {
+        cordova.exec(success, error, 'BackgroundMode', 'preflight', [refresh === true]);
+    }
+    else if (success) {
+        success({ ready: true });
     }
 };
 
@@ -499,6 +1145,13 @@ channel.onCordovaReady.subscribe(function()
 channel.deviceready.subscribe(function()
 {
 	if (exports._isAndroid) {
+        var onEvent = function(message) {
+            if (message && message.event) {
+                exports.fireEvent(message.event, message.data);
+            }
+        };
+        cordova.exec(onEvent, null, 'BackgroundMode', 'events', []);
+
         var isEnabled = function(isActive) {
 			if (isActive) {
 				exports.fireEvent('activate');